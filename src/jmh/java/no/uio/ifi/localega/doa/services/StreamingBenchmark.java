@@ -0,0 +1,211 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import no.elixir.crypt4gh.stream.Crypt4GHOutputStream;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.uio.ifi.localega.doa.dto.DestinationFormat;
+import no.uio.ifi.localega.doa.model.LEGAFile;
+import no.uio.ifi.localega.doa.repositories.FileRepository;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the <code>StreamingService</code> on a local Crypt4GH file: the archived body is stored in a file
+ * read through the POSIX archive backend and the header is kept in the file metadata, the same way they are stored in
+ * the archive and in the database. The service is created with its package-private constructor, with the real buffer
+ * pool and archive backend, only the repositories and the key holder are replaced by mocks. Transfers through the
+ * service are compared with the former export path (<code>SequenceInputStream</code> over the header and the file).
+ * <p>
+ * The file is generated from a fixed seed, so that the numbers are comparable between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StreamingBenchmark {
+
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final String FILE_ID = "EGAF00000000001";
+    private static final Set<String> DATASET_IDS = Set.of("EGAD00000000001");
+
+    /**
+     * Whether re-encrypted headers are cached, i.e. repeated requests of the same client or every request of a new one.
+     */
+    @Param({"true", "false"})
+    public boolean headerCache;
+
+    private StreamingService streamingService;
+    private String recipientPublicKey;
+    private byte[] header;
+    private Path body;
+    private Path target;
+
+    /**
+     * Plaintext range to read, only used by the range benchmarks.
+     */
+    @State(Scope.Benchmark)
+    public static class Range {
+
+        @Param({"0", "1000000", "33554432"})
+        public long offset;
+
+        @Param({"100", "1048576"})
+        public long length;
+
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(ch.qos.logback.classic.Level.WARN);
+        KeyUtils keyUtils = KeyUtils.getInstance();
+        KeyPair serverKeyPair = keyUtils.generateKeyPair();
+        recipientPublicKey = Files.readString(Path.of("test/crypt4gh.pub.pem"));
+        byte[] plaintext = new byte[FILE_SIZE];
+        new Random(42).nextBytes(plaintext);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        int headerLength;
+        try (Crypt4GHOutputStream crypt4GHOutputStream = new Crypt4GHOutputStream(encrypted, serverKeyPair.getPrivate(), serverKeyPair.getPublic())) {
+            crypt4GHOutputStream.flush();
+            headerLength = encrypted.size(); // the header is written on creation of the stream
+            crypt4GHOutputStream.write(plaintext);
+        }
+        byte[] file = encrypted.toByteArray();
+        body = Files.createTempFile("doa-benchmark-", ".c4gh");
+        Files.write(body, Arrays.copyOfRange(file, headerLength, file.length));
+        target = Files.createTempFile("doa-benchmark-", ".out");
+
+        LEGAFile legaFile = new LEGAFile();
+        legaFile.setFileId(FILE_ID);
+        legaFile.setFilePath(body.toAbsolutePath().toString());
+        legaFile.setDisplayFileName("body.c4gh");
+        header = Arrays.copyOfRange(file, 0, headerLength);
+        legaFile.setHeader(header);
+        legaFile.setFileSize((long) (file.length - headerLength));
+        legaFile.setChecksum(DigestUtils.sha256Hex(Arrays.copyOfRange(file, headerLength, file.length)));
+        legaFile.setDecryptedFileSize((long) FILE_SIZE);
+        legaFile.setDecryptedFileChecksum(DigestUtils.sha256Hex(plaintext));
+        streamingService = createStreamingService(legaFile, serverKeyPair);
+    }
+
+    private StreamingService createStreamingService(LEGAFile legaFile, KeyPair serverKeyPair) throws Exception {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+        FileRepository fileRepository = Mockito.mock(FileRepository.class);
+        Mockito.when(fileRepository.findById(FILE_ID)).thenReturn(Optional.of(legaFile));
+        MetadataService metadataService = Mockito.mock(MetadataService.class);
+        Mockito.when(metadataService.getFileDatasetIds(FILE_ID)).thenReturn(DATASET_IDS);
+        Crypt4GHKeyHolder crypt4GHKeyHolder = Mockito.mock(Crypt4GHKeyHolder.class);
+        Mockito.when(crypt4GHKeyHolder.getPrivateKey()).thenReturn(serverKeyPair.getPrivate());
+
+        BufferPool bufferPool = new BufferPool(meterRegistry, 16, 64);
+        POSIXArchiveBackend archiveBackend = new POSIXArchiveBackend(bufferPool, "/");
+        return new StreamingService(fileRepository, metadataService, crypt4GHKeyHolder, meterRegistry, bufferPool,
+                List.of(archiveBackend), headerCache ? 64L * 1024 * 1024 : 0L, 3600L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(body);
+        Files.deleteIfExists(target);
+    }
+
+    private FileContent open(DestinationFormat destinationFormat) throws Exception {
+        return streamingService.open(DATASET_IDS, recipientPublicKey, FILE_ID, destinationFormat.name(), null, null);
+    }
+
+    /**
+     * Opening of the file for the recipient (CRYPT4GH destination format): permissions check and header re-encryption.
+     */
+    @Benchmark
+    public FileContent openEncrypted() throws Exception {
+        return open(DestinationFormat.CRYPT4GH);
+    }
+
+    /**
+     * Decryption of the whole file (PLAIN destination format).
+     */
+    @Benchmark
+    public long decryptWhole() throws Exception {
+        try (InputStream inputStream = streamingService.stream(open(DestinationFormat.PLAIN))) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Decryption of a plaintext range (HTTP Range request): only the covering segments are read and a DataEditList is
+     * applied.
+     */
+    @Benchmark
+    public long decryptRange(Range range) throws Exception {
+        try (InputStream inputStream = streamingService.stream(open(DestinationFormat.PLAIN), range.offset, range.length)) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Range of the file re-encrypted for the recipient (HTTP Range request, e.g. a resumed download).
+     */
+    @Benchmark
+    public long encryptedRange(Range range) throws Exception {
+        try (InputStream inputStream = streamingService.stream(open(DestinationFormat.CRYPT4GH), range.offset, range.length)) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Transfer of the archived header and body to a file through the stream layers (the former export path, baseline
+     * of <code>transferEncryptedToFile</code>).
+     */
+    @Benchmark
+    public long transferSequenceToFile() throws Exception {
+        try (InputStream inputStream = new SequenceInputStream(new ByteArrayInputStream(header), Files.newInputStream(body));
+             OutputStream outputStream = new FileOutputStream(target.toFile())) {
+            return inputStream.transferTo(outputStream);
+        }
+    }
+
+    /**
+     * Transfer of the file re-encrypted for the recipient to a file (export to the POSIX outbox).
+     */
+    @Benchmark
+    public long transferEncryptedToFile() throws Exception {
+        try (InputStream inputStream = streamingService.stream(open(DestinationFormat.CRYPT4GH));
+             OutputStream outputStream = new FileOutputStream(target.toFile())) {
+            return inputStream.transferTo(outputStream);
+        }
+    }
+
+    /**
+     * Transfer of the archived header and body to a (network-like) stream through the stream layers (baseline of
+     * <code>transferEncryptedToStream</code>).
+     */
+    @Benchmark
+    public long transferSequenceToStream() throws Exception {
+        try (InputStream inputStream = new SequenceInputStream(new ByteArrayInputStream(header), Files.newInputStream(body))) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Transfer of the file re-encrypted for the recipient to a (network-like) stream (download).
+     */
+    @Benchmark
+    public long transferEncryptedToStream() throws Exception {
+        try (InputStream inputStream = streamingService.stream(open(DestinationFormat.CRYPT4GH))) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+}
@@ -1,8 +1,17 @@
 package no.uio.ifi.localega.doa;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
+import io.minio.MinioAsyncClient;
 import io.minio.MinioClient;
 import lombok.extern.slf4j.Slf4j;
+import no.uio.ifi.localega.doa.services.S3MultipartClient;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
@@ -19,7 +28,9 @@ import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Spring Boot main file containing the application entry-point and all necessary Spring beans configuration.
@@ -54,6 +65,39 @@ public class LocalEGADOAApplication {
         application.run(args);
     }
 
+    /**
+     * HTTP client shared by the Minio Clients: connection pool, dispatcher (limits of concurrent requests) and timeouts
+     * are tuned for concurrent downloads and exports, pool and dispatcher usage is exposed as metrics.
+     *
+     * @return <code>OkHttpClient</code>
+     */
+    @Bean
+    public OkHttpClient s3HttpClient(@Value("${s3.http.max-idle-connections}") int maxIdleConnections,
+                                     @Value("${s3.http.keep-alive}") long keepAlive,
+                                     @Value("${s3.http.max-requests}") int maxRequests,
+                                     @Value("${s3.http.connect-timeout}") long connectTimeout,
+                                     @Value("${s3.http.read-timeout}") long readTimeout,
+                                     @Value("${s3.http.write-timeout}") long writeTimeout,
+                                     @Value("${s3.http.http2}") boolean http2,
+                                     MeterRegistry meterRegistry) {
+        ConnectionPool connectionPool = new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.SECONDS);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequests);
+        Gauge.builder("s3.http.connections", connectionPool, ConnectionPool::connectionCount).register(meterRegistry);
+        Gauge.builder("s3.http.connections.idle", connectionPool, ConnectionPool::idleConnectionCount).register(meterRegistry);
+        Gauge.builder("s3.http.requests.running", dispatcher, Dispatcher::runningCallsCount).register(meterRegistry);
+        Gauge.builder("s3.http.requests.queued", dispatcher, Dispatcher::queuedCallsCount).register(meterRegistry);
+        return new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                .dispatcher(dispatcher)
+                .connectTimeout(Duration.ofSeconds(connectTimeout))
+                .readTimeout(Duration.ofSeconds(readTimeout))
+                .writeTimeout(Duration.ofSeconds(writeTimeout))
+                .protocols(http2 ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1) : List.of(Protocol.HTTP_1_1))
+                .build();
+    }
+
     /**
      * Archive Minio Client Spring bean.
      *
@@ -67,10 +111,11 @@ public class LocalEGADOAApplication {
                                      @Value("${s3.secret-key}") String s3SecretKey,
                                      @Value("${s3.region}") String s3Region,
                                      @Value("${s3.secure}") boolean s3Secure,
-                                     @Value("${s3.root-ca}") String s3RootCA) throws GeneralSecurityException {
+                                     @Value("${s3.root-ca}") String s3RootCA,
+                                     OkHttpClient s3HttpClient,
+                                     MeterRegistry meterRegistry) throws GeneralSecurityException {
         MinioClient.Builder builder = MinioClient.builder().endpoint(s3Endpoint, s3Port, s3Secure).region(s3Region).credentials(s3AccessKey, s3SecretKey);
-        Optional<OkHttpClient> optionalOkHttpClient = buildOkHttpClient(s3RootCA);
-        optionalOkHttpClient.ifPresent(builder::httpClient);
+        builder.httpClient(buildOkHttpClient(s3HttpClient, s3RootCA, "archive", meterRegistry));
         return builder.build();
     }
 
@@ -87,23 +132,51 @@ public class LocalEGADOAApplication {
                                     @Value("${s3.out.secret-key}") String s3SecretKey,
                                     @Value("${s3.out.region}") String s3Region,
                                     @Value("${s3.out.secure}") boolean s3Secure,
-                                    @Value("${s3.out.root-ca}") String s3RootCA) throws GeneralSecurityException {
+                                    @Value("${s3.out.root-ca}") String s3RootCA,
+                                    OkHttpClient s3HttpClient,
+                                    MeterRegistry meterRegistry) throws GeneralSecurityException {
         MinioClient.Builder builder = MinioClient.builder().endpoint(s3Endpoint, s3Port, s3Secure).region(s3Region).credentials(s3AccessKey, s3SecretKey);
-        Optional<OkHttpClient> optionalOkHttpClient = buildOkHttpClient(s3RootCA);
-        optionalOkHttpClient.ifPresent(builder::httpClient);
+        builder.httpClient(buildOkHttpClient(s3HttpClient, s3RootCA, "outbox", meterRegistry));
         return builder.build();
     }
 
-    private Optional<OkHttpClient> buildOkHttpClient(String s3RootCA) throws GeneralSecurityException {
+    /**
+     * Outbox Minio Client Spring bean for parallel multipart uploads.
+     *
+     * @return <code>S3MultipartClient</code>
+     * @throws GeneralSecurityException In case of SSL/TLS related errors.
+     */
+    @Bean
+    public S3MultipartClient outboxMultipartClient(@Value("${s3.out.endpoint}") String s3Endpoint,
+                                                   @Value("${s3.out.port}") int s3Port,
+                                                   @Value("${s3.out.access-key}") String s3AccessKey,
+                                                   @Value("${s3.out.secret-key}") String s3SecretKey,
+                                                   @Value("${s3.out.region}") String s3Region,
+                                                   @Value("${s3.out.secure}") boolean s3Secure,
+                                                   @Value("${s3.out.root-ca}") String s3RootCA,
+                                                   OkHttpClient s3HttpClient,
+                                                   MeterRegistry meterRegistry) throws GeneralSecurityException {
+        MinioAsyncClient.Builder builder = MinioAsyncClient.builder().endpoint(s3Endpoint, s3Port, s3Secure).region(s3Region).credentials(s3AccessKey, s3SecretKey);
+        builder.httpClient(buildOkHttpClient(s3HttpClient, s3RootCA, "outbox", meterRegistry));
+        return new S3MultipartClient(builder.build());
+    }
+
+    /**
+     * Derives the client from the shared one (sharing its connection pool and dispatcher), adding request metrics and
+     * trusting the given CA, if it can be read.
+     */
+    private OkHttpClient buildOkHttpClient(OkHttpClient s3HttpClient, String s3RootCA, String name, MeterRegistry meterRegistry) throws GeneralSecurityException {
+        OkHttpClient.Builder builder = s3HttpClient.newBuilder()
+                .eventListener(OkHttpMetricsEventListener.builder(meterRegistry, "s3.http.requests.duration").tags(Tags.of("client", name)).build());
         try {
             X509TrustManager trustManager = trustManagerForCertificates(Files.newInputStream(Path.of(s3RootCA)));
             SSLContext sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, new TrustManager[]{trustManager}, null);
-            return Optional.of(new OkHttpClient.Builder().sslSocketFactory(sslContext.getSocketFactory(), trustManager).build());
+            builder.sslSocketFactory(sslContext.getSocketFactory(), trustManager);
         } catch (CertificateException | IOException e) {
             log.warn("S3 Root CA file {} does not exist or can't be opened, skipping...", s3RootCA);
-            return Optional.empty();
         }
+        return builder.build();
     }
 
     private X509TrustManager trustManagerForCertificates(InputStream in) throws GeneralSecurityException {
@@ -0,0 +1,31 @@
+package no.uio.ifi.localega.doa.model;
+
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Converter;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Converts hex-encoded string columns to bytes, so that they are decoded once, when the entity is loaded.
+ */
+@Converter
+public class HexConverter implements AttributeConverter<byte[], String> {
+
+    @Override
+    public String convertToDatabaseColumn(byte[] attribute) {
+        return attribute == null ? null : Hex.encodeHexString(attribute);
+    }
+
+    @Override
+    public byte[] convertToEntityAttribute(String dbData) {
+        if (dbData == null) {
+            return null;
+        }
+        try {
+            return Hex.decodeHex(dbData);
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("Invalid hex value", e);
+        }
+    }
+
+}
@@ -16,7 +16,7 @@ import javax.validation.constraints.Size;
 /**
  * Model-POJO for Hibernate/Spring Data, describes LocalEGA dataset.
  */
-@org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.TRANSACTIONAL)
+@org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Entity
 @Immutable
 @Table(schema = "local_ega_ebi", name = "file_dataset")
@@ -8,6 +8,7 @@ import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Immutable;
 
 import jakarta.persistence.Column;
+import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.Id;
 import jakarta.persistence.Table;
@@ -16,7 +17,7 @@ import javax.validation.constraints.Size;
 /**
  * Model-POJO for Hibernate/Spring Data, describes LocalEGA file.
  */
-@org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.TRANSACTIONAL)
+@org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Entity
 @Immutable
 @Table(schema = "local_ega_ebi", name = "file")
@@ -76,7 +77,10 @@ public class LEGAFile {
     @Column(name = "file_status", insertable = false, updatable = false, length = 13)
     private String fileStatus;
 
+    // Crypt4GH header, stored hex-encoded
     @Column(insertable = false, updatable = false)
-    private String header;
+    @Convert(converter = HexConverter.class)
+    @ToString.Exclude
+    private byte[] header;
 
 }
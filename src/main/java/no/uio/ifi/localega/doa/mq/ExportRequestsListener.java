@@ -4,28 +4,41 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import io.jsonwebtoken.Claims;
-import io.minio.MinioClient;
-import io.minio.PutObjectArgs;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import no.uio.ifi.localega.doa.dto.DestinationFormat;
 import no.uio.ifi.localega.doa.dto.ExportRequest;
 import no.uio.ifi.localega.doa.model.DatasetEventLog;
 import no.uio.ifi.localega.doa.services.AAIService;
+import no.uio.ifi.localega.doa.services.FileContent;
 import no.uio.ifi.localega.doa.services.MetadataService;
+import no.uio.ifi.localega.doa.services.S3Uploader;
 import no.uio.ifi.localega.doa.services.StreamingService;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
 
 /**
  * RabbitMQ listener that processes incoming export requests.
@@ -39,7 +52,7 @@ public class ExportRequestsListener {
     private Gson gson;
 
     @Autowired
-    private MinioClient outboxClient;
+    private S3Uploader s3Uploader;
 
     @Autowired
     private AAIService aaiService;
@@ -50,19 +63,36 @@ public class ExportRequestsListener {
     @Autowired
     private StreamingService streamingService;
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Value("${outbox.type}")
     private String outboxType;
 
     @Value("${outbox.location}")
     private String outboxLocation;
 
+    @Value("${outbox.export-concurrency}")
+    private int exportConcurrency;
+
     @Value("${s3.bucket}")
     private String s3Bucket;
 
+    /**
+     * Processes export requests. In the shared mode the queue is durable and can be consumed by several DOA instances,
+     * otherwise it's exclusive to this instance. Number of requests processed in parallel is controlled by the
+     * <code>spring.rabbitmq.listener.simple</code> container settings.
+     *
+     * @param message   Export request.
+     * @param timestamp Time the request was published at, if set by the publisher (used for measuring queue lag).
+     */
     @RabbitListener(
-            queuesToDeclare = @Queue(name = "${outbox.queue}", durable = "false", exclusive = "true", autoDelete = "true")
+            queuesToDeclare = @Queue(name = "${outbox.queue}", durable = "${outbox.shared-queue}", exclusive = "#{!${outbox.shared-queue}}", autoDelete = "#{!${outbox.shared-queue}}")
     )
-    public void listen(String message) {
+    public void listen(String message, @Header(name = AmqpHeaders.TIMESTAMP, required = false) Date timestamp) {
+        if (timestamp != null) {
+            meterRegistry.timer("doa.export.queue.lag").record(Math.max(System.currentTimeMillis() - timestamp.getTime(), 0), TimeUnit.MILLISECONDS);
+        }
         try {
             ExportRequest exportRequest = gson.fromJson(message, ExportRequest.class);
             var tokenArray = exportRequest.getJwtToken().split("[.]");
@@ -76,23 +106,12 @@ public class ExportRequestsListener {
             Collection<String> approvedDatasetIds = aaiService.getDatasetIds(exportRequest.getJwtToken());
             String requestedDatasetId = exportRequest.getDatasetId();
             if (StringUtils.isNotEmpty(requestedDatasetId)) {
-                if (metadataService.findByReferenceId(requestedDatasetId) != null) {
-                    Integer datasetsDbTableId = metadataService.findByReferenceId(requestedDatasetId).getDatasetId();
-                    String stableDatasetId = metadataService.getDataset(datasetsDbTableId).getStableId();
+                String stableDatasetId = metadataService.resolveReferences(Set.of(requestedDatasetId)).get(requestedDatasetId);
+                if (stableDatasetId != null) {
                     log.info("Reference id {} mapped to dataset id {}", requestedDatasetId, stableDatasetId);
                     requestedDatasetId = stableDatasetId; // use stable dataset id instead of reference to complete the export as normal
-                    Collection<String> approvedMappedDatasetIds = approvedDatasetIds.stream()
-                            .map(x -> {
-                                var reference = metadataService.findByReferenceId(x);
-                                if (reference != null && reference.getDatasetId() != null) {
-                                    var dataset = metadataService.getDataset(reference.getDatasetId());
-                                    return dataset != null ? dataset.getStableId() : x;
-                                } else {
-                                    return x;
-                                }
-                            })
-                            .toList();
-                    approvedDatasetIds = approvedMappedDatasetIds;
+                    Map<String, String> approvedStableIds = metadataService.resolveReferences(approvedDatasetIds);
+                    approvedDatasetIds = approvedDatasetIds.stream().map(x -> approvedStableIds.getOrDefault(x, x)).toList();
                 }
                 exportDataset(user, approvedDatasetIds, requestedDatasetId, exportRequest.getPublicKey(), exportRequest.getStartCoordinate(), exportRequest.getEndCoordinate());
             } else if (StringUtils.isNotEmpty(exportRequest.getFileId())) {
@@ -118,13 +137,7 @@ public class ExportRequestsListener {
         if (latestEvent != null) {
             String event = latestEvent.getEvent();
             if (event.equals("released")) {
-                metadataService.files(datasetId).forEach(f -> {
-                    try {
-                        exportFile(user, datasetIds, f.getFileId(), publicKey, startCoordinate, endCoordinate);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e.getMessage(), e);
-                    }
-                });
+                exportFiles(user, datasetIds, datasetId, publicKey, startCoordinate, endCoordinate);
             } else {
                 log.info("Cannot export. Dataset {} is not released, it is {}", datasetId, event);
             }
@@ -133,6 +146,48 @@ public class ExportRequestsListener {
         }
     }
 
+    /**
+     * Exports files of the dataset concurrently (on virtual threads, bounded by the configured concurrency).
+     * Failure of one file is logged and doesn't prevent the export of the other ones.
+     */
+    private void exportFiles(String user,
+                             Collection<String> datasetIds,
+                             String datasetId,
+                             String publicKey,
+                             String startCoordinate,
+                             String endCoordinate) {
+        Timer.Sample datasetExport = Timer.start(meterRegistry);
+        Map<String, Future<?>> results = new LinkedHashMap<>();
+        Semaphore permits = new Semaphore(Math.max(exportConcurrency, 1));
+        try (ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (var file : metadataService.files(datasetId)) {
+                results.put(file.getFileId(), executorService.submit(() -> {
+                    permits.acquire();
+                    try {
+                        exportFile(user, datasetIds, file.getFileId(), publicKey, startCoordinate, endCoordinate);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+        }
+        int failed = 0;
+        for (Map.Entry<String, Future<?>> result : results.entrySet()) {
+            try {
+                result.getValue().get();
+            } catch (ExecutionException e) {
+                failed++;
+                log.error("Failed to export file {} of dataset {}: {}", result.getKey(), datasetId, e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+        datasetExport.stop(meterRegistry.timer("doa.export.dataset", "type", outboxType, "outcome", failed == 0 ? "success" : "failure"));
+        log.info("Dataset {} exported: {} files succeeded, {} failed", datasetId, results.size() - failed, failed);
+    }
+
     private void exportFile(String user,
                             Collection<String> datasetIds,
                             String fileId,
@@ -140,10 +195,17 @@ public class ExportRequestsListener {
                             String startCoordinate,
                             String endCoordinate) throws Exception {
         log.info("Outbox type: {}", outboxType);
-        switch (outboxType) {
-            case "POSIX" -> exportFilePOSIX(user, datasetIds, fileId, publicKey, startCoordinate, endCoordinate);
-            case "S3" -> exportFileS3(user, datasetIds, fileId, publicKey, startCoordinate, endCoordinate);
-            default -> throw new RuntimeException("Unknown outbox type: " + outboxType);
+        Timer.Sample fileExport = Timer.start(meterRegistry);
+        String outcome = "failure";
+        try {
+            switch (outboxType) {
+                case "POSIX" -> exportFilePOSIX(user, datasetIds, fileId, publicKey, startCoordinate, endCoordinate);
+                case "S3" -> exportFileS3(user, datasetIds, fileId, publicKey, startCoordinate, endCoordinate);
+                default -> throw new RuntimeException("Unknown outbox type: " + outboxType);
+            }
+            outcome = "success";
+        } finally {
+            fileExport.stop(meterRegistry.timer("doa.export.file", "type", outboxType, "outcome", outcome));
         }
     }
 
@@ -153,15 +215,27 @@ public class ExportRequestsListener {
                                  String publicKey,
                                  String startCoordinate,
                                  String endCoordinate) throws Exception {
-        InputStream inputStream = streamingService.stream(datasetIds, publicKey, fileId, DestinationFormat.CRYPT4GH.toString(), startCoordinate, endCoordinate);
-        String fileName = metadataService.getFileName(fileId);
+        FileContent content = streamingService.open(datasetIds, publicKey, fileId, DestinationFormat.CRYPT4GH.toString(), startCoordinate, endCoordinate);
+        String fileName = content.getFileName();
         String filePath = String.format(outboxLocation, user) + fileName;
         log.info("Exporting {} to {}", fileId, filePath);
-        File file = new File(filePath);
-        if (file.exists()) {
-            log.warn("File exists in the outbox already, skipping");
+        Path file = Path.of(filePath);
+        if (Files.exists(file)) {
+            log.warn("File exists in the outbox already, overwriting");
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        // write next to the target and rename, so that the file never appears in the outbox half-written
+        Path tempFile = file.resolveSibling("." + file.getFileName() + "." + UUID.randomUUID() + ".part");
+        try {
+            try (InputStream inputStream = streamingService.stream(content);
+                 OutputStream outputStream = new FileOutputStream(tempFile.toFile())) {
+                inputStream.transferTo(outputStream); // in-kernel copy of the body for filesystem archive
+            }
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
         }
-        FileUtils.copyToFile(inputStream, file);
         log.info("File exported");
     }
 
@@ -171,11 +245,13 @@ public class ExportRequestsListener {
                               String publicKey,
                               String startCoordinate,
                               String endCoordinate) throws Exception {
-        InputStream inputStream = streamingService.stream(datasetIds, publicKey, fileId, DestinationFormat.CRYPT4GH.toString(), startCoordinate, endCoordinate);
-        String fileName = metadataService.getFileName(fileId);
+        FileContent content = streamingService.open(datasetIds, publicKey, fileId, DestinationFormat.CRYPT4GH.toString(), startCoordinate, endCoordinate);
+        String fileName = content.getFileName();
         String filePath = user + "/" + fileName;
         log.info("Exporting {} to {}", fileId, filePath);
-        outboxClient.putObject(PutObjectArgs.builder().bucket(s3Bucket).object(filePath).stream(inputStream, -1, 10485760).build());
+        try (InputStream inputStream = streamingService.stream(content)) {
+            s3Uploader.upload(s3Bucket, filePath, inputStream, content.getLength());
+        }
         log.info("File exported");
     }
 
@@ -1,7 +1,10 @@
 package no.uio.ifi.localega.doa.repositories;
 
 import no.uio.ifi.localega.doa.model.DatasetEventLog;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
 import java.util.Optional;
@@ -9,5 +12,6 @@ import java.util.Optional;
 @Repository
 public interface DatasetEventLogRepository extends JpaRepository<DatasetEventLog, Integer> {
 
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"))
     Optional<DatasetEventLog> findFirstByDatasetIdOrderByEventDateDesc(String datasetId);
 }
@@ -2,9 +2,28 @@ package no.uio.ifi.localega.doa.repositories;
 
 import no.uio.ifi.localega.doa.model.DatasetReferences;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+
 @Repository
 public interface DatasetReferencesRepository extends JpaRepository<DatasetReferences, Integer> {
-    DatasetReferences findByReferenceId(String referenceId);
+
+    @Query("SELECT r.referenceId AS referenceId, d.stableId AS stableId FROM DatasetReferences r JOIN Dataset d ON d.id = r.datasetId WHERE r.referenceId IN :referenceIds")
+    List<ReferenceMapping> findStableIdsByReferenceIds(@Param("referenceIds") Collection<String> referenceIds);
+
+    /**
+     * Stable ID of the dataset a reference ID points to.
+     */
+    interface ReferenceMapping {
+
+        String getReferenceId();
+
+        String getStableId();
+
+    }
+
 }
@@ -1,10 +1,16 @@
 package no.uio.ifi.localega.doa.repositories;
 
 import no.uio.ifi.localega.doa.model.LEGADataset;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.Collection;
+import java.util.Set;
 
 /**
  * Spring Data repository for datasets.
@@ -12,8 +18,11 @@ import java.util.Collection;
 @Repository
 public interface DatasetRepository extends JpaRepository<LEGADataset, String> {
 
-    Collection<LEGADataset> findByDatasetId(String datasetId);
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"))
+    @Query("SELECT DISTINCT d.datasetId FROM LEGADataset d WHERE d.datasetId IN :datasetIds")
+    Set<String> findDistinctDatasetIds(@Param("datasetIds") Collection<String> datasetIds);
 
-    Collection<LEGADataset> findByDatasetIdIn(Collection<String> datasetId);
+    @Query("SELECT d.datasetId FROM LEGADataset d WHERE d.fileId = :fileId")
+    Set<String> findDatasetIdsByFileId(@Param("fileId") String fileId);
 
 }
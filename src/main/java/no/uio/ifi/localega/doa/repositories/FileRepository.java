@@ -1,12 +1,53 @@
 package no.uio.ifi.localega.doa.repositories;
 
+import jakarta.persistence.QueryHint;
+import no.uio.ifi.localega.doa.dto.File;
 import no.uio.ifi.localega.doa.model.LEGAFile;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.stream.Stream;
+
 /**
  * Spring Data repository for files.
  */
 @Repository
 public interface FileRepository extends JpaRepository<LEGAFile, String> {
+
+    /**
+     * Streams <code>File</code> DTOs of the dataset, joining datasets and files in a single query.
+     * Has to be called within a transaction, the stream has to be closed after use.
+     *
+     * @param datasetId Dataset ID.
+     * @return Stream of files in the dataset.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("SELECT new no.uio.ifi.localega.doa.dto.File(f.fileId, d.datasetId, f.displayFileName, f.fileName, f.fileSize, " +
+            "f.unencryptedChecksum, f.unencryptedChecksumType, f.decryptedFileSize, f.decryptedFileChecksum, " +
+            "f.decryptedFileChecksumType, f.fileStatus) " +
+            "FROM LEGADataset d JOIN LEGAFile f ON f.fileId = d.fileId WHERE d.datasetId = :datasetId")
+    Stream<File> streamFilesByDatasetId(@Param("datasetId") String datasetId);
+
+    /**
+     * Streams <code>File</code> DTOs of the dataset with file IDs greater than the given one, ordered by file ID.
+     * Has to be called within a transaction, the stream has to be closed after use.
+     *
+     * @param datasetId Dataset ID.
+     * @param after     File ID to start after.
+     * @param limit     Max number of files, applied in the query.
+     * @return Stream of files in the dataset.
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("SELECT new no.uio.ifi.localega.doa.dto.File(f.fileId, d.datasetId, f.displayFileName, f.fileName, f.fileSize, " +
+            "f.unencryptedChecksum, f.unencryptedChecksumType, f.decryptedFileSize, f.decryptedFileChecksum, " +
+            "f.decryptedFileChecksumType, f.fileStatus) " +
+            "FROM LEGADataset d JOIN LEGAFile f ON f.fileId = d.fileId WHERE d.datasetId = :datasetId AND d.fileId > :after " +
+            "ORDER BY d.fileId")
+    Stream<File> streamFilesByDatasetIdAfter(@Param("datasetId") String datasetId, @Param("after") String after, Limit limit);
+
 }
@@ -1,18 +1,27 @@
 package no.uio.ifi.localega.doa.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import no.uio.ifi.localega.doa.aspects.AAIAspect;
+import no.uio.ifi.localega.doa.dto.File;
 import no.uio.ifi.localega.doa.services.MetadataService;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.GetMapping;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -30,6 +39,9 @@ public class MetadataController {
     @Autowired
     private MetadataService metadataService;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
     /**
      * Lists datasets.
      *
@@ -44,21 +56,81 @@ public class MetadataController {
     }
 
     /**
-     * Lists files in the dataset.
+     * Lists files in the dataset. If <code>limit</code> or <code>after</code> is specified, files are ordered by ID
+     * and paginated by the keyset (ID of the last file of the previous page). If <code>application/x-ndjson</code> is
+     * preferred to JSON, files are streamed as newline-delimited JSON while being read from the database.
      *
      * @param datasetId Dataset ID.
-     * @return List of files in the dataset.
+     * @param after     Optional ID of the file to list files after.
+     * @param limit     Optional max number of files to list.
+     * @param accept    Accepted media types.
+     * @param response  HTTP response to stream newline-delimited JSON to.
+     * @return List of files in the dataset, or <code>null</code> if the files were streamed to the response as
+     * newline-delimited JSON.
+     * @throws IOException In case the response can't be written.
      */
     @SuppressWarnings("unchecked")
     @GetMapping("/datasets/{datasetId}/files")
-    public ResponseEntity<?> files(@PathVariable(value = "datasetId") String datasetId) {
+    public ResponseEntity<?> files(@PathVariable(value = "datasetId") String datasetId,
+                                   @RequestParam(value = "after", required = false) String after,
+                                   @RequestParam(value = "limit", required = false) Integer limit,
+                                   @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                   HttpServletResponse response) throws IOException {
         Set<String> datasetIds = (Set<String>) request.getAttribute(AAIAspect.DATASETS);
         if (!datasetIds.contains(datasetId)) {
             log.info("User doesn't have permissions to list files in the requested dataset: {}", datasetId);
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         }
         log.info("User has permissions to list files in the requested dataset: {}", datasetId);
+        if (limit != null && limit < 0) {
+            return ResponseEntity.badRequest().build();
+        }
+        if (acceptsNDJSON(accept)) {
+            // written directly: a StreamingResponseBody is not recognized inside of ResponseEntity<?>
+            response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+            OutputStream outputStream = response.getOutputStream();
+            metadataService.files(datasetId, after, limit, file -> {
+                try {
+                    outputStream.write(objectMapper.writeValueAsBytes(file));
+                    outputStream.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return null;
+        }
+        if (after != null || limit != null) {
+            List<File> files = new ArrayList<>();
+            metadataService.files(datasetId, after, limit, files::add);
+            return ResponseEntity.ok(files);
+        }
         return ResponseEntity.ok(metadataService.files(datasetId));
     }
 
+    /**
+     * Checks whether newline-delimited JSON is accepted with at least the quality of JSON (matched by wildcards as
+     * well), so that clients accepting anything keep getting JSON.
+     */
+    private boolean acceptsNDJSON(String accept) {
+        if (StringUtils.isBlank(accept)) {
+            return false;
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+        double ndjsonQuality = 0;
+        double jsonQuality = 0;
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.equalsTypeAndSubtype(MediaType.APPLICATION_NDJSON)) {
+                ndjsonQuality = Math.max(ndjsonQuality, mediaType.getQualityValue());
+            } else if (mediaType.includes(MediaType.APPLICATION_JSON)) {
+                jsonQuality = Math.max(jsonQuality, mediaType.getQualityValue());
+            }
+        }
+        return ndjsonQuality > 0 && ndjsonQuality >= jsonQuality;
+    }
+
 }
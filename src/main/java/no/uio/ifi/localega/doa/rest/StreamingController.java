@@ -2,22 +2,33 @@ package no.uio.ifi.localega.doa.rest;
 
 import lombok.extern.slf4j.Slf4j;
 import no.uio.ifi.localega.doa.aspects.AAIAspect;
-import no.uio.ifi.localega.doa.services.MetadataService;
+import no.uio.ifi.localega.doa.services.FileContent;
 import no.uio.ifi.localega.doa.services.StreamingService;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.*;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.*;
 
 import jakarta.security.auth.message.AuthException;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
-import java.util.Set;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * REST controller incorporating streaming-related endpoints.
+ * <p>
+ * Requests are processed on virtual threads (<code>spring.threads.virtual.enabled</code>), so a download blocked on
+ * a slow client holds neither a platform thread nor more data than the response buffer: reading from the archive
+ * proceeds only as fast as the client consumes the response.
  */
 @Slf4j
 @ConditionalOnProperty("rest.enabled")
@@ -28,42 +39,143 @@ public class StreamingController {
     @Autowired
     protected HttpServletRequest request;
 
-    @Autowired
-    protected MetadataService metadataService;
-
     @Autowired
     protected StreamingService streamingService;
 
+    @Value("${streaming.buffer-size}")
+    private int bufferSize;
+
     /**
-     * Streams the requested file.
+     * Streams the requested file. Supports byte ranges (<code>Range</code> and <code>If-Range</code> headers) when the
+     * length of the requested representation is known.
      *
      * @param publicKey         Optional public key, if the re-encryption was requested.
+     * @param range             Optional byte ranges to return.
+     * @param ifRange           Optional entity tag the byte ranges are conditional on.
      * @param fileId            ID of the file to stream.
      * @param destinationFormat Destination format.
      * @param startCoordinate   Start byte.
      * @param endCoordinate     End byte.
+     * @param response          HTTP response (for setting the buffer size).
      * @return File-stream.
      * @throws Exception In case of some error.
      */
     @SuppressWarnings("unchecked")
     @GetMapping("/{fileId}")
     public ResponseEntity<?> files(@RequestHeader(value = "Public-Key", required = false) String publicKey,
+                                   @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                   @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
                                    @PathVariable(value = "fileId") String fileId,
                                    @RequestParam(value = "destinationFormat", required = false) String destinationFormat,
                                    @RequestParam(value = "startCoordinate", required = false) String startCoordinate,
-                                   @RequestParam(value = "endCoordinate", required = false) String endCoordinate) throws Exception {
+                                   @RequestParam(value = "endCoordinate", required = false) String endCoordinate,
+                                   HttpServletResponse response) throws Exception {
         try {
+            response.setBufferSize(bufferSize);
             Set<String> datasetIds = (Set<String>) request.getAttribute(AAIAspect.DATASETS);
-            InputStream inputStream = streamingService.stream(datasetIds, publicKey, fileId, destinationFormat, startCoordinate, endCoordinate);
-            return ResponseEntity.ok().headers(getResponseHeaders(fileId, StringUtils.isNotEmpty(publicKey))).body(new InputStreamResource(inputStream));
+            FileContent content = streamingService.open(datasetIds, publicKey, fileId, destinationFormat, startCoordinate, endCoordinate);
+            HttpHeaders responseHeaders = getResponseHeaders(content, StringUtils.isNotEmpty(publicKey));
+            Long length = content.getLength();
+            if (length == null) {
+                return ResponseEntity.ok().headers(responseHeaders).body(new InputStreamResource(streamingService.stream(content)));
+            }
+            responseHeaders.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+            if (content.getETag() != null) {
+                responseHeaders.setETag(content.getETag());
+            }
+            List<HttpRange> requestedRanges = StringUtils.isEmpty(range) || !ifRangeMatches(ifRange, content.getETag()) ? Collections.emptyList() : parseRanges(range);
+            if (requestedRanges.isEmpty()) {
+                responseHeaders.setContentLength(length);
+                return ResponseEntity.ok().headers(responseHeaders).body(new InputStreamResource(streamingService.stream(content)));
+            }
+            List<HttpRange> httpRanges = getSatisfiableRanges(requestedRanges, length);
+            if (httpRanges.isEmpty()) {
+                log.info("Requested range is not satisfiable: {}", range);
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).header(HttpHeaders.CONTENT_RANGE, "bytes */" + length).build();
+            }
+            if (httpRanges.size() == 1) {
+                HttpRange httpRange = httpRanges.get(0);
+                long start = httpRange.getRangeStart(length);
+                long end = httpRange.getRangeEnd(length);
+                responseHeaders.set(HttpHeaders.CONTENT_RANGE, getContentRange(start, end, length));
+                responseHeaders.setContentLength(end - start + 1);
+                return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(responseHeaders).body(new InputStreamResource(streamingService.stream(content, start, end - start + 1)));
+            }
+            String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+            responseHeaders.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT).headers(responseHeaders).body(new InputStreamResource(getMultipartInputStream(content, httpRanges, boundary)));
         } catch (AuthException e) {
             log.info("User doesn't have permissions to download requested file: {}", fileId);
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         }
     }
 
-    private HttpHeaders getResponseHeaders(String fileId, boolean encrypted) {
-        String fileName = metadataService.getFileName(fileId);
+    private boolean ifRangeMatches(String ifRange, String eTag) {
+        if (StringUtils.isEmpty(ifRange)) {
+            return true;
+        }
+        // only strong entity tags can be used for ranges, HTTP-dates are never matched as we don't expose Last-Modified
+        return eTag != null && !eTag.startsWith("W/") && ifRange.trim().equals(eTag);
+    }
+
+    /**
+     * Parses the byte ranges. Invalid headers and other range units are ignored (the full content is returned).
+     */
+    private List<HttpRange> parseRanges(String range) {
+        try {
+            return HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            log.info("Ignoring Range header: {}", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private List<HttpRange> getSatisfiableRanges(List<HttpRange> httpRanges, long length) {
+        return httpRanges
+                .stream()
+                .filter(r -> r.getRangeStart(length) < length && r.getRangeStart(length) <= r.getRangeEnd(length))
+                .toList();
+    }
+
+    private InputStream getMultipartInputStream(FileContent content, List<HttpRange> httpRanges, String boundary) {
+        long length = content.getLength();
+        List<Supplier<InputStream>> parts = new ArrayList<>();
+        for (HttpRange httpRange : httpRanges) {
+            long start = httpRange.getRangeStart(length);
+            long end = httpRange.getRangeEnd(length);
+            String partHeaders = "\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + getContentRange(start, end, length) + "\r\n\r\n";
+            parts.add(() -> new ByteArrayInputStream(partHeaders.getBytes(StandardCharsets.US_ASCII)));
+            parts.add(() -> {
+                try { // ranges are opened lazily, one at a time
+                    return streamingService.stream(content, start, end - start + 1);
+                } catch (Exception e) {
+                    throw new RuntimeException(e.getMessage(), e);
+                }
+            });
+        }
+        parts.add(() -> new ByteArrayInputStream(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+        Iterator<Supplier<InputStream>> iterator = parts.iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return iterator.next().get();
+            }
+        });
+    }
+
+    private String getContentRange(long start, long end, long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    private HttpHeaders getResponseHeaders(FileContent content, boolean encrypted) {
+        String fileName = content.getFileName();
         HttpHeaders responseHeaders = new HttpHeaders();
         responseHeaders.setContentType(MediaType.APPLICATION_OCTET_STREAM);
         if (encrypted) {
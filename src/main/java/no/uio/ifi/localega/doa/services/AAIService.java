@@ -1,12 +1,20 @@
 package no.uio.ifi.localega.doa.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import no.uio.ifi.clearinghouse.Clearinghouse;
 import no.uio.ifi.clearinghouse.model.Visa;
 import no.uio.ifi.clearinghouse.model.VisaType;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
@@ -15,6 +23,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -24,6 +33,9 @@ import java.util.stream.Collectors;
 @Service
 public class AAIService {
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @Value("${ga4gh.passport.userinfo-endpoint-url}")
     private String userInfoEndpointURL;
 
@@ -36,26 +48,80 @@ public class AAIService {
     @Value("${ga4gh.visa.public-key-path}")
     private String visaPublicKeyPath;
 
+    @Value("${ga4gh.cache.max-size}")
+    private long cacheMaxSize;
+
+    @Value("${ga4gh.cache.max-ttl}")
+    private long cacheMaxTTL;
+
+    private final Gson gson = new Gson();
+
+    private Cache<String, AuthorizedDatasets> datasetIdsCache;
+
+    @PostConstruct
+    private void init() {
+        datasetIdsCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfter(new Expiry<String, AuthorizedDatasets>() {
+                    @Override
+                    public long expireAfterCreate(String key, AuthorizedDatasets value, long currentTime) {
+                        long ttl = Math.min(value.expiresAt() - System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(cacheMaxTTL));
+                        return TimeUnit.MILLISECONDS.toNanos(Math.max(ttl, 0));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, AuthorizedDatasets value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, AuthorizedDatasets value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, datasetIdsCache, "aai-datasets");
+    }
+
     /**
-     * Extracts datasets access information from the JWT or opaque access token.
+     * Extracts datasets access information from the JWT or opaque access token. Results are cached by the token hash
+     * until the earliest expiration of the token and its visas (bounded by the configured maximum TTL).
      *
      * @param accessToken JWT or opaque access token.
      * @return IDs of datasets user has access to.
      */
     public Collection<String> getDatasetIds(String accessToken) {
+        String tokenHash = DigestUtils.sha256Hex(accessToken);
+        AuthorizedDatasets authorizedDatasets = datasetIdsCache.getIfPresent(tokenHash);
+        if (authorizedDatasets != null) {
+            log.debug("Datasets for the access token {} are taken from the cache", tokenHash);
+            return authorizedDatasets.datasetIds();
+        }
+        authorizedDatasets = meterRegistry.timer("doa.aai.validation").record(() -> resolveDatasetIds(accessToken));
+        datasetIdsCache.put(tokenHash, authorizedDatasets);
+        return authorizedDatasets.datasetIds();
+    }
+
+    private AuthorizedDatasets resolveDatasetIds(String accessToken) {
         Collection<Visa> visas = new ArrayList<>();
-        if (StringUtils.countMatches(accessToken, '.') == 2) { 
-            var tokenArray = accessToken.split("[.]");
-            byte[] decodedPayload = Base64.getUrlDecoder().decode(tokenArray[1]);
-            String decodedPayloadString = new String(decodedPayload);
-            Gson gson = new Gson();
-            Set<String> claims = gson.fromJson(decodedPayloadString, JsonObject.class).keySet();
-
-            boolean isVisa = claims.contains("ga4gh_visa_v1");
+        long expiresAt = Long.MAX_VALUE;
+        if (StringUtils.countMatches(accessToken, '.') == 2) {
+            JsonObject claims = getClaims(accessToken);
+            expiresAt = getExpiration(claims);
+
+            boolean isVisa = claims.has("ga4gh_visa_v1");
             if (isVisa) {
                 getVisa(accessToken).ifPresent(visas::add);
             } else {
-                visas.addAll(getVisasFromJWTToken(accessToken));
+                Collection<String> visaTokens = getVisaTokensFromJWTToken(accessToken);
+                for (String visaToken : visaTokens) {
+                    Optional<Visa> visa = getVisa(visaToken);
+                    if (visa.isPresent()) {
+                        visas.add(visa.get());
+                        expiresAt = Math.min(expiresAt, getExpiration(getClaims(visaToken)));
+                    }
+                }
             }
         } else { // opaque token
             visas = getVisasFromOpaqueToken(accessToken);
@@ -78,9 +144,22 @@ public class AAIService {
                 .map(Visa::getValue)
                 .map(d -> StringUtils.stripEnd(d, "/"))
                 .map(d -> StringUtils.substringAfterLast(d, "/"))
-                .collect(Collectors.toSet());
+                .collect(Collectors.toUnmodifiableSet());
         log.info("User has access to the following datasets: {}", datasets);
-        return datasets;
+        return new AuthorizedDatasets(datasets, expiresAt);
+    }
+
+    private JsonObject getClaims(String jwtToken) {
+        var tokenArray = jwtToken.split("[.]");
+        byte[] decodedPayload = Base64.getUrlDecoder().decode(tokenArray[1]);
+        return gson.fromJson(new String(decodedPayload), JsonObject.class);
+    }
+
+    private long getExpiration(JsonObject claims) {
+        if (!claims.has("exp") || claims.get("exp").isJsonNull()) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.SECONDS.toMillis(claims.get("exp").getAsLong());
     }
 
     protected Collection<Visa> getVisasFromOpaqueToken(String accessToken) {
@@ -92,20 +171,13 @@ public class AAIService {
                 .collect(Collectors.toList());
     }
 
-    protected Collection<Visa> getVisasFromJWTToken(String accessToken) {
-        Collection<String> visaTokens;
+    protected Collection<String> getVisaTokensFromJWTToken(String accessToken) {
         try {
             String passportPublicKey = Files.readString(Path.of(passportPublicKeyPath));
-            visaTokens = Clearinghouse.INSTANCE.getVisaTokensWithPEMPublicKey(accessToken, passportPublicKey);
+            return Clearinghouse.INSTANCE.getVisaTokensWithPEMPublicKey(accessToken, passportPublicKey);
         } catch (IOException e) {
-            visaTokens = Clearinghouse.INSTANCE.getVisaTokens(accessToken, openIDConfigurationURL);
+            return Clearinghouse.INSTANCE.getVisaTokens(accessToken, openIDConfigurationURL);
         }
-        return visaTokens
-                .stream()
-                .map(this::getVisa)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList());
     }
 
     protected Optional<Visa> getVisa(String visaToken) {
@@ -117,5 +189,7 @@ public class AAIService {
         }
     }
 
+    private record AuthorizedDatasets(Set<String> datasetIds, long expiresAt) {
+    }
 
 }
@@ -0,0 +1,40 @@
+package no.uio.ifi.localega.doa.services;
+
+import no.uio.ifi.localega.doa.model.LEGAFile;
+
+import java.io.InputStream;
+
+/**
+ * Storage the archived bodies of the files are read from. The backend of a file is picked by its path once, when the
+ * file is opened, as the first (in the order of the beans) backend supporting that path.
+ */
+public interface ArchiveBackend {
+
+    /**
+     * Returns the name of the backend, used in logs and metrics.
+     *
+     * @return Backend name.
+     */
+    String getName();
+
+    /**
+     * Checks whether the archived file with such path is stored in this backend.
+     *
+     * @param filePath Archive path of the file.
+     * @return <code>true</code> if the file is stored in this backend.
+     */
+    boolean supports(String filePath);
+
+    /**
+     * Opens a region of the archived body of the file, preceded by the given bytes.
+     *
+     * @param file   File to read.
+     * @param prefix Bytes to return before the body (e.g. Crypt4GH header).
+     * @param offset Offset of the body region.
+     * @param length Length of the body region, <code>null</code> to read till the end.
+     * @return Stream of the prefix followed by the body region.
+     * @throws Exception In case of some error.
+     */
+    InputStream open(LEGAFile file, byte[] prefix, long offset, Long length) throws Exception;
+
+}
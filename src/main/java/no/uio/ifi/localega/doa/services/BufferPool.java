@@ -0,0 +1,128 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of large copy buffers shared by archive-to-sink copies (downloads and exports).
+ * <p>
+ * Buffers hold a whole number of Crypt4GH cipher segments. They are allocated lazily, when none is available in the
+ * pool, and at most the configured number of them is kept for reuse after being released. The pool size bounds only
+ * the retained buffers, not the allocations: every concurrent copy takes a buffer, so the memory in use grows with
+ * the number of concurrent copies (see the <code>doa.buffer.pool.in.use</code> gauge).
+ * Buffers are heap ones: all the sinks (servlet response, S3 client, <code>OutputStream</code>s) take byte arrays,
+ * so direct buffers would only add a copy.
+ */
+@Service
+public class BufferPool {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${streaming.copy-buffer-segments}")
+    private int bufferSegments;
+
+    @Value("${streaming.copy-buffer-pool-size}")
+    private int poolSize;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    private Counter allocations;
+
+    BufferPool() {
+    }
+
+    /**
+     * Creates the pool outside of the Spring context (benchmarks).
+     */
+    BufferPool(MeterRegistry meterRegistry, int bufferSegments, int poolSize) {
+        this.meterRegistry = meterRegistry;
+        this.bufferSegments = bufferSegments;
+        this.poolSize = poolSize;
+        init();
+    }
+
+    @PostConstruct
+    private void init() {
+        Gauge.builder("doa.buffer.pool.available", buffers, ConcurrentLinkedQueue::size).register(meterRegistry);
+        Gauge.builder("doa.buffer.pool.in.use", inUse, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("doa.buffer.pool.capacity", () -> poolSize).register(meterRegistry);
+        allocations = meterRegistry.counter("doa.buffer.pool.allocations");
+    }
+
+    /**
+     * Returns the size of the buffers.
+     *
+     * @return Buffer size in bytes.
+     */
+    public int getBufferSize() {
+        return Math.max(bufferSegments, 1) * StreamingService.CIPHER_SEGMENT_SIZE;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none is available. The buffer must be returned with
+     * {@link #release(ByteBuffer)}.
+     *
+     * @return Cleared buffer.
+     */
+    public ByteBuffer acquire() {
+        inUse.incrementAndGet();
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer.clear();
+        }
+        allocations.increment();
+        return ByteBuffer.allocate(getBufferSize());
+    }
+
+    /**
+     * Returns the buffer to the pool (or drops it, if the pool is full).
+     *
+     * @param buffer Buffer taken with {@link #acquire()}.
+     */
+    public void release(ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        if (buffer.capacity() == getBufferSize() && buffers.size() < poolSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Copies the stream using a pooled buffer.
+     *
+     * @param in  Stream to read.
+     * @param out Stream to write to.
+     * @return Number of bytes copied.
+     * @throws IOException In case of I/O error.
+     */
+    public long copy(InputStream in, OutputStream out) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            byte[] array = buffer.array();
+            long copied = 0;
+            int read;
+            while ((read = in.read(array)) != -1) {
+                out.write(array, 0, read);
+                copied += read;
+            }
+            return copied;
+        } finally {
+            release(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.persistence.EntityManagerFactory;
+import lombok.extern.slf4j.Slf4j;
+import no.elixir.crypt4gh.util.KeyUtils;
+import no.uio.ifi.localega.doa.model.LEGAFile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+
+/**
+ * Holds the decrypted Crypt4GH private key of the archive in memory. The key is re-read only when the key file or the
+ * password file is modified on disk (e.g. on key rotation), which is checked at most once per configured interval.
+ * When a new key is loaded, cached files are evicted from the second-level cache, as their headers are encrypted for
+ * the previous key.
+ */
+@Slf4j
+@Service
+public class Crypt4GHKeyHolder {
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Value("${crypt4gh.private-key-path}")
+    private String crypt4ghPrivateKeyPath;
+
+    @Value("${crypt4gh.private-key-password-path}")
+    private String crypt4ghPrivateKeyPasswordPath;
+
+    @Value("${crypt4gh.reload-check-interval}")
+    private long reloadCheckInterval;
+
+    private volatile LoadedKey loadedKey;
+
+    private volatile long lastCheck;
+
+    /**
+     * Returns the Crypt4GH private key, reloading it if the files have changed since it was last read.
+     *
+     * @return Crypt4GH private key.
+     * @throws IOException              In case the key or the password can't be read.
+     * @throws GeneralSecurityException In case the key can't be decrypted.
+     */
+    public PrivateKey getPrivateKey() throws IOException, GeneralSecurityException {
+        LoadedKey current = loadedKey;
+        if (current != null && System.currentTimeMillis() - lastCheck < reloadCheckInterval) {
+            return current.privateKey();
+        }
+        synchronized (this) {
+            current = loadedKey;
+            long now = System.currentTimeMillis();
+            if (current != null && now - lastCheck < reloadCheckInterval) {
+                return current.privateKey();
+            }
+            Path keyPath = Path.of(crypt4ghPrivateKeyPath);
+            Path passwordPath = Path.of(crypt4ghPrivateKeyPasswordPath);
+            try {
+                FileTime keyModified = Files.getLastModifiedTime(keyPath);
+                FileTime passwordModified = Files.getLastModifiedTime(passwordPath);
+                if (current == null || !keyModified.equals(current.keyModified()) || !passwordModified.equals(current.passwordModified())) {
+                    Timer.Sample keyLoading = Timer.start(meterRegistry);
+                    String password = Files.readString(passwordPath);
+                    PrivateKey privateKey = KeyUtils.getInstance().readPrivateKey(keyPath.toFile(), password.toCharArray());
+                    keyLoading.stop(meterRegistry.timer("doa.crypt4gh.key.load"));
+                    boolean rotated = current != null;
+                    current = new LoadedKey(privateKey, keyModified, passwordModified);
+                    loadedKey = current;
+                    log.info("Crypt4GH private key loaded from {}", keyPath);
+                    if (rotated) {
+                        entityManagerFactory.getCache().evict(LEGAFile.class);
+                    }
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                if (current == null) {
+                    throw e;
+                }
+                // files may be briefly missing or half-written during rotation: keep serving the previous key
+                log.warn("Can't reload Crypt4GH private key, using the previously loaded one: {}", e.getMessage());
+            }
+            lastCheck = now;
+            return current.privateKey();
+        }
+    }
+
+    private record LoadedKey(PrivateKey privateKey, FileTime keyModified, FileTime passwordModified) {
+    }
+
+}
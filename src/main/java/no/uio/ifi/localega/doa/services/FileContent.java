@@ -0,0 +1,75 @@
+package no.uio.ifi.localega.doa.services;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import no.uio.ifi.localega.doa.dto.DestinationFormat;
+import no.uio.ifi.localega.doa.model.LEGAFile;
+
+import java.security.PrivateKey;
+
+/**
+ * Representation of the file in the requested destination format, returned by the <code>StreamingService</code>.
+ * Can be streamed either fully or by byte ranges.
+ */
+@Getter
+@ToString(onlyExplicitlyIncluded = true)
+@AllArgsConstructor(access = AccessLevel.PACKAGE)
+public class FileContent {
+
+    @ToString.Include
+    private final LEGAFile file;
+
+    /**
+     * Archive backend the body of the file is stored in, selected once by the file path.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final ArchiveBackend archiveBackend;
+
+    @ToString.Include
+    private final DestinationFormat destinationFormat;
+
+    /**
+     * Original Crypt4GH header for PLAIN format, header re-encrypted for the recipient for CRYPT4GH format.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final byte[] header;
+
+    @Getter(AccessLevel.PACKAGE)
+    private final PrivateKey privateKey;
+
+    /**
+     * Window of the body: archive offset for CRYPT4GH format, plaintext offset for PLAIN format.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final long bodyOffset;
+
+    /**
+     * Length of the body window, <code>null</code> if it spans till the end of the file of unknown size.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final Long bodyLength;
+
+    /**
+     * Length of the content in bytes, <code>null</code> if it can't be computed from the metadata.
+     */
+    @ToString.Include
+    private final Long length;
+
+    /**
+     * Entity tag of the content, <code>null</code> if there's no checksum to derive it from.
+     */
+    @ToString.Include
+    private final String eTag;
+
+    /**
+     * Name of the file to present to the user, as resolved together with the content.
+     *
+     * @return Display file name.
+     */
+    public String getFileName() {
+        return file.getDisplayFileName();
+    }
+
+}
@@ -0,0 +1,132 @@
+package no.uio.ifi.localega.doa.services;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Objects;
+
+/**
+ * <code>InputStream</code> over a region of a file, optionally preceded by some in-memory bytes (e.g. Crypt4GH header).
+ * <p>
+ * <code>transferTo</code> moves the region straight from the <code>FileChannel</code>: to a file it uses
+ * <code>FileChannel.transferTo</code> (which is done in-kernel), to other streams it copies in large chunks (through
+ * a pooled buffer), avoiding the intermediate stream layers and small buffers of the default implementation.
+ */
+public class FileRegionInputStream extends InputStream {
+
+    private final byte[] prefix;
+    private final FileChannel channel;
+    private final long end;
+    private final BufferPool bufferPool;
+
+    private int prefixPosition;
+    private long position;
+
+    /**
+     * Creates the stream, copying to other streams through buffers taken from the pool.
+     *
+     * @param prefix     Bytes to return before the region.
+     * @param channel    File channel to read from. Closed together with the stream.
+     * @param position   Position of the region in the file.
+     * @param length     Length of the region.
+     * @param bufferPool Pool of copy buffers.
+     */
+    public FileRegionInputStream(byte[] prefix, FileChannel channel, long position, long length, BufferPool bufferPool) {
+        this.prefix = Objects.requireNonNull(prefix);
+        this.channel = Objects.requireNonNull(channel);
+        this.position = position;
+        this.end = position + length;
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        if (prefixPosition < prefix.length) {
+            int n = Math.min(len, prefix.length - prefixPosition);
+            System.arraycopy(prefix, prefixPosition, b, off, n);
+            prefixPosition += n;
+            return n;
+        }
+        if (position >= end) {
+            return -1;
+        }
+        int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+        if (n == -1) {
+            return -1;
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, prefix.length - prefixPosition);
+        prefixPosition += (int) skipped;
+        long skippedInFile = Math.max(Math.min(n - skipped, end - position), 0);
+        position += skippedInFile;
+        return skipped + skippedInFile;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, prefix.length - prefixPosition + Math.max(end - position, 0));
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = prefix.length - prefixPosition;
+        out.write(prefix, prefixPosition, prefix.length - prefixPosition);
+        prefixPosition = prefix.length;
+        if (out instanceof FileOutputStream fileOutputStream) {
+            out.flush();
+            FileChannel target = fileOutputStream.getChannel();
+            while (position < end) {
+                long n = channel.transferTo(position, end - position, target);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+                transferred += n;
+            }
+            return transferred;
+        }
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int n = channel.read(buffer, position);
+                if (n == -1) {
+                    break;
+                }
+                out.write(buffer.array(), 0, n);
+                position += n;
+                transferred += n;
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return transferred;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
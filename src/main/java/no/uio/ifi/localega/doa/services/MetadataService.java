@@ -1,20 +1,30 @@
 package no.uio.ifi.localega.doa.services;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import no.uio.ifi.localega.doa.dto.File;
-import no.uio.ifi.localega.doa.model.Dataset;
 import no.uio.ifi.localega.doa.model.DatasetEventLog;
-import no.uio.ifi.localega.doa.model.DatasetReferences;
-import no.uio.ifi.localega.doa.model.LEGADataset;
 import no.uio.ifi.localega.doa.repositories.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Collection;
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Service for accessing metadata (Files and Datasets).
@@ -36,7 +46,33 @@ public class MetadataService {
     private DatasetReferencesRepository datasetReferencesRepository;
 
     @Autowired
-    private DatasetsRepository datasetsRepository;
+    private MeterRegistry meterRegistry;
+
+    @Value("${metadata.cache.max-size}")
+    private long cacheMaxSize;
+
+    @Value("${metadata.cache.ttl}")
+    private long cacheTTL;
+
+    private LoadingCache<String, Set<String>> fileDatasetsCache;
+
+    private Cache<String, Optional<String>> referencesCache;
+
+    @PostConstruct
+    private void init() {
+        fileDatasetsCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTTL, TimeUnit.SECONDS)
+                .recordStats()
+                .build(fileId -> Set.copyOf(datasetRepository.findDatasetIdsByFileId(fileId)));
+        referencesCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTTL, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, fileDatasetsCache, "file-datasets");
+        CaffeineCacheMetrics.monitor(meterRegistry, referencesCache, "dataset-references");
+    }
 
     /**
      * Returns collection of dataset IDs present in the databse.
@@ -44,8 +80,7 @@ public class MetadataService {
      * @return Collection of dataset IDs.
      */
     public Collection<String> datasets(Set<String> datasetIds) {
-        Collection<LEGADataset> datasets = datasetRepository.findByDatasetIdIn(datasetIds);
-        return datasets.stream().filter(Objects::nonNull).map(LEGADataset::getDatasetId).collect(Collectors.toSet());
+        return datasetRepository.findDistinctDatasetIds(datasetIds);
     }
 
     /**
@@ -54,39 +89,53 @@ public class MetadataService {
      * @param datasetId Dataset ID.
      * @return List of files in the dataset.
      */
+    @Transactional(readOnly = true)
     public Collection<File> files(String datasetId) {
-        Collection<LEGADataset> datasets = datasetRepository.findByDatasetId(datasetId);
-        return datasets
-                .stream()
-                .filter(Objects::nonNull)
-                .map(LEGADataset::getFileId)
-                .map(fileRepository::findById)
-                .flatMap(Optional::stream)
-                .map(f -> {
-                    File file = new File();
-                    file.setFileId(f.getFileId());
-                    file.setDatasetId(datasetId);
-                    file.setDisplayFileName(f.getDisplayFileName());
-                    file.setFileName(f.getFileName());
-                    file.setFileSize(f.getFileSize());
-                    file.setDecryptedFileSize(f.getDecryptedFileSize());
-                    file.setDecryptedFileChecksum(f.getDecryptedFileChecksum());
-                    file.setDecryptedFileChecksumType(f.getDecryptedFileChecksumType());
-                    file.setUnencryptedChecksum(f.getUnencryptedChecksum());
-                    file.setUnencryptedChecksumType(f.getUnencryptedChecksumType());
-                    file.setFileStatus(f.getFileStatus());
-                    return file;
-                })
-                .collect(Collectors.toSet());
+        try (Stream<File> files = fileRepository.streamFilesByDatasetId(datasetId)) {
+            return files.collect(Collectors.toSet());
+        }
+    }
+
+    /**
+     * Passes <code>File</code>'s of the dataset to the consumer one by one, ordered by file ID, as they are read
+     * from the database.
+     *
+     * @param datasetId Dataset ID.
+     * @param after     Optional file ID to start after (keyset pagination).
+     * @param limit     Optional max number of files.
+     * @param consumer  Consumer of the files.
+     */
+    @Transactional(readOnly = true)
+    public void files(String datasetId, String after, Integer limit, Consumer<File> consumer) {
+        if (limit != null && limit == 0) {
+            return;
+        }
+        try (Stream<File> files = fileRepository.streamFilesByDatasetIdAfter(datasetId, after == null ? "" : after, limit == null ? Limit.unlimited() : Limit.of(limit))) {
+            files.forEach(consumer);
+        }
+    }
+
+    /**
+     * Returns IDs of datasets the file belongs to. Backed by an in-memory index, entries of which expire after the
+     * configured TTL and are then read from the database again on the next lookup.
+     *
+     * @param fileId File ID.
+     * @return IDs of datasets containing the file.
+     */
+    public Set<String> getFileDatasetIds(String fileId) {
+        return fileDatasetsCache.get(fileId);
     }
 
     /**
-     * Returns file name by file ID.
+     * Reads IDs of datasets the file belongs to from the database, replacing the cached ones (e.g. when they may miss
+     * a dataset the file was added to recently).
      *
-     * @return Filename.
+     * @param fileId File ID.
+     * @return IDs of datasets containing the file.
      */
-    public String getFileName(String fileId) {
-        return fileRepository.findById(fileId).orElseThrow(RuntimeException::new).getDisplayFileName();
+    public Set<String> reloadFileDatasetIds(String fileId) {
+        fileDatasetsCache.invalidate(fileId);
+        return fileDatasetsCache.get(fileId);
     }
 
     public DatasetEventLog findLatestByDatasetId(String datasetId) {
@@ -94,13 +143,25 @@ public class MetadataService {
         return optionalDatasetEventLog.orElse(null);
     }
 
-    public DatasetReferences findByReferenceId(String referenceId) {
-        Optional<DatasetReferences> optionalDatasetReferences = Optional.ofNullable(datasetReferencesRepository.findByReferenceId(referenceId));
-        return optionalDatasetReferences.orElse(null);
+    /**
+     * Maps dataset reference IDs to stable IDs of the datasets. IDs that are not cached are resolved with a single
+     * query; IDs that are not references are cached as well, so that they are not looked up again.
+     *
+     * @param ids Dataset IDs, either stable or reference ones.
+     * @return Stable dataset IDs by reference IDs, IDs that are not references are not included.
+     */
+    public Map<String, String> resolveReferences(Collection<String> ids) {
+        Map<String, String> stableIds = new HashMap<>();
+        referencesCache.getAll(ids, this::loadReferences).forEach((id, stableId) -> stableId.ifPresent(s -> stableIds.put(id, s)));
+        return stableIds;
     }
 
-    public Dataset getDataset(Integer id) {
-        return datasetsRepository.findById(id).orElse(null);
+    private Map<String, Optional<String>> loadReferences(Set<? extends String> referenceIds) {
+        Map<String, Optional<String>> stableIds = new HashMap<>();
+        referenceIds.forEach(id -> stableIds.put(id, Optional.empty()));
+        datasetReferencesRepository.findStableIdsByReferenceIds(Set.copyOf(referenceIds))
+                .forEach(mapping -> stableIds.put(mapping.getReferenceId(), Optional.ofNullable(mapping.getStableId())));
+        return stableIds;
     }
 
 }
@@ -0,0 +1,64 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.micrometer.core.instrument.Counter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * <code>InputStream</code> that counts the bytes read through it (skipped bytes are not counted).
+ * <p>
+ * <code>transferTo</code> is delegated to <code>FileRegionInputStream</code>, so that its optimized implementation is
+ * kept, other streams are copied through a pooled buffer.
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+    private final Counter counter;
+    private final BufferPool bufferPool;
+
+    /**
+     * Creates the stream.
+     *
+     * @param in         Stream to wrap.
+     * @param counter    Counter to increment by the number of bytes read.
+     * @param bufferPool Pool of copy buffers.
+     */
+    public MeteredInputStream(InputStream in, Counter counter, BufferPool bufferPool) {
+        super(in);
+        this.counter = counter;
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+            counter.increment();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            counter.increment(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = in instanceof FileRegionInputStream ? in.transferTo(out) : bufferPool.copy(in, out);
+        counter.increment(transferred);
+        return transferred;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+}
@@ -0,0 +1,75 @@
+package no.uio.ifi.localega.doa.services;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import no.uio.ifi.localega.doa.model.LEGAFile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Filesystem archive: file paths are appended to the archive path. Supports any path, so it's the last backend tried.
+ * Regions are read straight from the <code>FileChannel</code> (see <code>FileRegionInputStream</code>).
+ */
+@Slf4j
+@Order(Ordered.LOWEST_PRECEDENCE)
+@Service
+public class POSIXArchiveBackend implements ArchiveBackend {
+
+    @Autowired
+    private BufferPool bufferPool;
+
+    @Value("${archive.path}")
+    private String archivePath;
+
+    private String pathPrefix;
+
+    POSIXArchiveBackend() {
+    }
+
+    /**
+     * Creates the backend outside of the Spring context (benchmarks).
+     */
+    POSIXArchiveBackend(BufferPool bufferPool, String archivePath) {
+        this.bufferPool = bufferPool;
+        this.archivePath = archivePath;
+        init();
+    }
+
+    @PostConstruct
+    private void init() {
+        pathPrefix = "/".equals(archivePath) ? "" : archivePath;
+    }
+
+    @Override
+    public String getName() {
+        return "POSIX";
+    }
+
+    @Override
+    public boolean supports(String filePath) {
+        return true;
+    }
+
+    @Override
+    public InputStream open(LEGAFile file, byte[] prefix, long offset, Long length) throws IOException {
+        Path path = Path.of(pathPrefix + file.getFilePath()); // redundant slashes are dropped by Path
+        log.info("Archive path is: {}", path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new FileRegionInputStream(prefix, channel, offset, length == null ? channel.size() - offset : length, bufferPool);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+}
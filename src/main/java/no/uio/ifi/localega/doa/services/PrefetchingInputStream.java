@@ -0,0 +1,177 @@
+package no.uio.ifi.localega.doa.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <code>InputStream</code> over a region of a remote object that fetches several chunks of it in parallel ahead of
+ * the reader and returns them in order.
+ * <p>
+ * Chunk boundaries are aligned to multiples of the chunk size. Every chunk fetched or buffered takes a permit from the
+ * shared semaphore, which bounds the memory taken by prefetched data across all streams: the stream holds one permit
+ * (acquired by the caller) for its whole life, so that it can always make progress, chunks beyond the first one (up to
+ * the stream concurrency) are fetched only if more permits are available.
+ */
+public class PrefetchingInputStream extends InputStream {
+
+    /**
+     * Reads a range of the object.
+     */
+    @FunctionalInterface
+    public interface RangeReader {
+
+        /**
+         * Reads the range fully.
+         *
+         * @param offset Offset of the range.
+         * @param length Length of the range.
+         * @return Bytes of the range.
+         * @throws Exception In case of some error.
+         */
+        byte[] read(long offset, int length) throws Exception;
+
+    }
+
+    private final RangeReader rangeReader;
+    private final ExecutorService executorService;
+    private final Semaphore permits;
+    private final int chunkSize;
+    private final int concurrency;
+    private final long end;
+    private final Deque<Future<byte[]>> chunks = new ArrayDeque<>();
+
+    private long nextOffset;
+    private byte[] current = new byte[0];
+    private int position;
+    private int heldPermits = 1;
+
+    /**
+     * Creates the stream and starts fetching the first chunks. The caller must have acquired one permit, which is
+     * taken over by the stream and released when it's closed.
+     *
+     * @param rangeReader     Reader of the object ranges.
+     * @param executorService Executor to fetch chunks on.
+     * @param permits         Shared permits for prefetched chunks.
+     * @param chunkSize       Size of the chunks.
+     * @param concurrency     Max number of chunks fetched or buffered at once by this stream.
+     * @param offset          Offset of the region.
+     * @param length          Length of the region.
+     */
+    public PrefetchingInputStream(RangeReader rangeReader, ExecutorService executorService, Semaphore permits,
+                                  int chunkSize, int concurrency, long offset, long length) {
+        this.rangeReader = Objects.requireNonNull(rangeReader);
+        this.executorService = Objects.requireNonNull(executorService);
+        this.permits = Objects.requireNonNull(permits);
+        this.chunkSize = chunkSize;
+        this.concurrency = Math.max(concurrency, 1);
+        this.nextOffset = offset;
+        this.end = offset + length;
+        fetch();
+    }
+
+    private int getBufferedChunks() {
+        return chunks.size() + (current.length > 0 ? 1 : 0);
+    }
+
+    private void fetch() {
+        while (nextOffset < end && chunks.size() < concurrency) {
+            if (getBufferedChunks() >= heldPermits) {
+                if (!permits.tryAcquire()) {
+                    return;
+                }
+                heldPermits++;
+            }
+            long chunkOffset = nextOffset;
+            long chunkEnd = Math.min(end, (chunkOffset / chunkSize + 1) * chunkSize);
+            chunks.add(executorService.submit(() -> rangeReader.read(chunkOffset, (int) (chunkEnd - chunkOffset))));
+            nextOffset = chunkEnd;
+        }
+    }
+
+    private boolean next() throws IOException {
+        current = new byte[0]; // the consumed chunk gives its permit to the next fetch
+        position = 0;
+        fetch();
+        Future<byte[]> chunk = chunks.poll();
+        if (chunk == null) {
+            return false;
+        }
+        try {
+            current = chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        fetch();
+        // permits not needed anymore (e.g. at the end of the region) are returned, except the one of the stream
+        int excess = heldPermits - Math.max(getBufferedChunks(), 1);
+        if (excess > 0) {
+            permits.release(excess);
+            heldPermits -= excess;
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the first chunk of the region, without consuming it.
+     *
+     * @throws IOException In case the chunk can't be fetched.
+     */
+    public void awaitFirstChunk() throws IOException {
+        if (position >= current.length) {
+            next();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (len == 0) {
+            return 0;
+        }
+        while (position >= current.length) {
+            if (!next()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    @Override
+    public void close() {
+        Future<byte[]> chunk;
+        while ((chunk = chunks.poll()) != null) {
+            chunk.cancel(true);
+        }
+        current = new byte[0];
+        position = 0;
+        nextOffset = end;
+        permits.release(heldPermits);
+        heldPermits = 0;
+    }
+
+}
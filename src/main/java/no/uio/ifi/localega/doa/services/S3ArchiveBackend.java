@@ -0,0 +1,153 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.minio.GetObjectArgs;
+import io.minio.MinioClient;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import no.uio.ifi.localega.doa.model.LEGAFile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import static no.uio.ifi.localega.doa.services.StreamingService.CIPHER_SEGMENT_SIZE;
+
+/**
+ * S3 archive: file paths are numeric object names in the archive bucket. Long regions are prefetched with parallel
+ * range requests (see <code>PrefetchingInputStream</code>) while prefetch permits are available.
+ */
+@Order(1)
+@Service
+public class S3ArchiveBackend implements ArchiveBackend {
+
+    @Autowired
+    private MinioClient archiveClient;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Value("${s3.bucket}")
+    private String s3Bucket;
+
+    @Value("${s3.prefetch.concurrency}")
+    private int prefetchConcurrency;
+
+    @Value("${s3.prefetch.chunk-segments}")
+    private int prefetchChunkSegments;
+
+    @Value("${s3.prefetch.max-buffered-chunks}")
+    private int prefetchMaxBufferedChunks;
+
+    private final ExecutorService prefetchExecutorService = Executors.newVirtualThreadPerTaskExecutor();
+
+    private Semaphore prefetchPermits;
+
+    S3ArchiveBackend() {
+    }
+
+    /**
+     * Creates the backend outside of the Spring context (tests).
+     */
+    S3ArchiveBackend(MinioClient archiveClient, MeterRegistry meterRegistry, String s3Bucket,
+                     int prefetchConcurrency, int prefetchChunkSegments, int prefetchMaxBufferedChunks) {
+        this.archiveClient = archiveClient;
+        this.meterRegistry = meterRegistry;
+        this.s3Bucket = s3Bucket;
+        this.prefetchConcurrency = prefetchConcurrency;
+        this.prefetchChunkSegments = prefetchChunkSegments;
+        this.prefetchMaxBufferedChunks = prefetchMaxBufferedChunks;
+        init();
+    }
+
+    @PostConstruct
+    private void init() {
+        prefetchPermits = new Semaphore(Math.max(prefetchMaxBufferedChunks, 0));
+        Gauge.builder("doa.s3.prefetch.available", prefetchPermits, Semaphore::availablePermits).register(meterRegistry);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutorService.shutdownNow();
+    }
+
+    @Override
+    public String getName() {
+        return "S3";
+    }
+
+    @Override
+    public boolean supports(String filePath) {
+        if (filePath == null || filePath.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < filePath.length(); i++) {
+            char c = filePath.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public InputStream open(LEGAFile file, byte[] prefix, long offset, Long length) throws Exception {
+        String objectName = getObjectName(file.getFilePath());
+        Long regionLength = length == null && file.getFileSize() != null ? Long.valueOf(file.getFileSize() - offset) : length;
+        int chunkSize = Math.max(prefetchChunkSegments, 1) * CIPHER_SEGMENT_SIZE;
+        // every prefetched chunk takes a permit, if there are none left the object is read as a single stream
+        if (prefetchConcurrency > 1 && regionLength != null && regionLength > chunkSize && prefetchPermits.tryAcquire()) {
+            PrefetchingInputStream body;
+            try {
+                body = new PrefetchingInputStream((o, l) -> getObjectRange(objectName, o, l), prefetchExecutorService, prefetchPermits, chunkSize, prefetchConcurrency, offset, regionLength);
+            } catch (RuntimeException e) {
+                prefetchPermits.release();
+                throw e;
+            }
+            try {
+                // the object is open once data arrives, as with a single request
+                body.awaitFirstChunk();
+            } catch (IOException e) {
+                body.close();
+                throw e;
+            }
+            return new SequenceInputStream(new ByteArrayInputStream(prefix), body);
+        }
+        GetObjectArgs.Builder builder = GetObjectArgs.builder().bucket(s3Bucket).object(objectName);
+        if (offset > 0 || length != null) {
+            builder.offset(offset).length(length);
+        }
+        InputStream body = archiveClient.getObject(builder.build());
+        return new SequenceInputStream(new ByteArrayInputStream(prefix), body);
+    }
+
+    private String getObjectName(String filePath) {
+        // objects are named by the numeric value of the path, i.e. without leading zeros
+        int i = 0;
+        while (i < filePath.length() - 1 && filePath.charAt(i) == '0') {
+            i++;
+        }
+        return filePath.substring(i);
+    }
+
+    private byte[] getObjectRange(String objectName, long offset, int length) throws Exception {
+        try (InputStream inputStream = archiveClient.getObject(GetObjectArgs.builder().bucket(s3Bucket).object(objectName).offset(offset).length((long) length).build())) {
+            byte[] data = inputStream.readNBytes(length);
+            if (data.length != length) {
+                throw new EOFException(String.format("Object %s ended at %s, expected %s bytes more", objectName, offset + data.length, length - data.length));
+            }
+            return data;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.minio.MinioAsyncClient;
+import io.minio.messages.Part;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Minio client exposing the S3 multipart upload calls, which <code>MinioClient</code> only uses internally (uploading
+ * the parts one by one).
+ */
+public class S3MultipartClient extends MinioAsyncClient {
+
+    /**
+     * Wraps the client, sharing its endpoint, credentials and HTTP client.
+     *
+     * @param client Async Minio client to wrap.
+     */
+    public S3MultipartClient(MinioAsyncClient client) {
+        super(client);
+    }
+
+    /**
+     * Starts a multipart upload.
+     *
+     * @param bucket     Bucket.
+     * @param objectName Name of the object to create.
+     * @return Upload ID.
+     * @throws Exception In case of some error.
+     */
+    public String createUpload(String bucket, String objectName) throws Exception {
+        return createMultipartUploadAsync(bucket, null, objectName, null, null).get().result().uploadId();
+    }
+
+    /**
+     * Uploads a part, asynchronously.
+     *
+     * @param bucket     Bucket.
+     * @param objectName Name of the object.
+     * @param uploadId   Upload ID.
+     * @param partNumber Number of the part, starting from 1.
+     * @param data       Content of the part.
+     * @return Uploaded part, to complete the upload with.
+     * @throws Exception In case of some error.
+     */
+    public CompletableFuture<Part> putPart(String bucket, String objectName, String uploadId, int partNumber, byte[] data) throws Exception {
+        return uploadPartAsync(bucket, null, objectName, data, data.length, uploadId, partNumber, null, null)
+                .thenApply(response -> new Part(response.partNumber(), response.etag()));
+    }
+
+    /**
+     * Completes the upload, creating the object from the parts.
+     *
+     * @param bucket     Bucket.
+     * @param objectName Name of the object.
+     * @param uploadId   Upload ID.
+     * @param parts      Uploaded parts, ordered by their numbers.
+     * @throws Exception In case of some error.
+     */
+    public void completeUpload(String bucket, String objectName, String uploadId, Part[] parts) throws Exception {
+        completeMultipartUploadAsync(bucket, null, objectName, uploadId, parts, null, null).get();
+    }
+
+    /**
+     * Aborts the upload, removing the uploaded parts.
+     *
+     * @param bucket     Bucket.
+     * @param objectName Name of the object.
+     * @param uploadId   Upload ID.
+     * @throws Exception In case of some error.
+     */
+    public void abortUpload(String bucket, String objectName, String uploadId) throws Exception {
+        abortMultipartUploadAsync(bucket, null, objectName, uploadId, null, null).get();
+    }
+
+}
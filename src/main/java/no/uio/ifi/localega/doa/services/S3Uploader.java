@@ -0,0 +1,150 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import io.minio.messages.Part;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Service for uploading files to the S3 outbox.
+ * <p>
+ * Part size is picked so that the object fits into the S3 limit of 10000 parts. Objects larger than one part are
+ * uploaded with a multipart upload, with the parts sent in parallel: parts are read into memory buffers (their total
+ * number is bounded by the upload concurrency across all uploads) and uploaded asynchronously. The upload is aborted
+ * if any of the parts fails, so that the uploaded parts don't take space in the outbox.
+ */
+@Slf4j
+@Service
+public class S3Uploader {
+
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long MAX_PARTS = 10000;
+    private static final long MEBIBYTE = 1024 * 1024;
+
+    @Autowired
+    private MinioClient outboxClient;
+
+    @Autowired
+    private S3MultipartClient outboxMultipartClient;
+
+    @Value("${s3.out.part-size}")
+    private long partSize;
+
+    @Value("${s3.out.upload-concurrency}")
+    private int uploadConcurrency;
+
+    private Semaphore partPermits;
+
+    S3Uploader() {
+    }
+
+    /**
+     * Creates the uploader outside of the Spring context (tests).
+     */
+    S3Uploader(MinioClient outboxClient, S3MultipartClient outboxMultipartClient, long partSize, int uploadConcurrency) {
+        this.outboxClient = outboxClient;
+        this.outboxMultipartClient = outboxMultipartClient;
+        this.partSize = partSize;
+        this.uploadConcurrency = uploadConcurrency;
+        init();
+    }
+
+    @PostConstruct
+    private void init() {
+        partPermits = new Semaphore(Math.max(uploadConcurrency, 1));
+    }
+
+    /**
+     * Uploads the stream to the outbox.
+     *
+     * @param bucket      Outbox bucket.
+     * @param objectName  Name of the object to create.
+     * @param inputStream Stream to upload.
+     * @param size        Size of the stream, <code>null</code> if unknown.
+     * @throws Exception In case of some error.
+     */
+    public void upload(String bucket, String objectName, InputStream inputStream, Long size) throws Exception {
+        if (size == null) {
+            log.info("Uploading {} of unknown size with part size {}", objectName, partSize);
+            outboxClient.putObject(PutObjectArgs.builder().bucket(bucket).object(objectName).stream(inputStream, -1, partSize).build());
+            return;
+        }
+        long objectPartSize = getPartSize(size);
+        if (uploadConcurrency <= 1 || size <= objectPartSize) {
+            log.info("Uploading {} of size {} with part size {}", objectName, size, objectPartSize);
+            outboxClient.putObject(PutObjectArgs.builder().bucket(bucket).object(objectName).stream(inputStream, size, objectPartSize).build());
+            return;
+        }
+        uploadParallel(bucket, objectName, inputStream, size, objectPartSize);
+    }
+
+    private void uploadParallel(String bucket, String objectName, InputStream inputStream, long size, long objectPartSize) throws Exception {
+        int parts = (int) ((size + objectPartSize - 1) / objectPartSize);
+        log.info("Uploading {} of size {} in {} parts of size {}", objectName, size, parts, objectPartSize);
+        String uploadId = outboxMultipartClient.createUpload(bucket, objectName);
+        List<CompletableFuture<Part>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < parts; i++) {
+                if (futures.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                    break; // the error is rethrown below
+                }
+                int length = (int) Math.min(objectPartSize, size - i * objectPartSize);
+                partPermits.acquire();
+                CompletableFuture<Part> future;
+                try {
+                    byte[] buffer = inputStream.readNBytes(length);
+                    if (buffer.length != length) {
+                        throw new EOFException(String.format("Stream for %s ended after %s bytes, expected %s", objectName, i * objectPartSize + buffer.length, size));
+                    }
+                    future = outboxMultipartClient.putPart(bucket, objectName, uploadId, i + 1, buffer);
+                } catch (Exception e) {
+                    partPermits.release();
+                    throw e;
+                }
+                futures.add(future.whenComplete((part, e) -> partPermits.release()));
+            }
+            Part[] uploadedParts = new Part[futures.size()];
+            for (int i = 0; i < uploadedParts.length; i++) {
+                uploadedParts[i] = futures.get(i).get();
+            }
+            outboxMultipartClient.completeUpload(bucket, objectName, uploadId, uploadedParts);
+        } catch (Exception e) {
+            abort(bucket, objectName, uploadId, futures);
+            throw e;
+        }
+    }
+
+    /**
+     * Aborts the upload once the parts being uploaded are done, so that they are removed as well.
+     */
+    private void abort(String bucket, String objectName, String uploadId, List<CompletableFuture<Part>> futures) {
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).exceptionally(e -> null).join();
+        try {
+            outboxMultipartClient.abortUpload(bucket, objectName, uploadId);
+        } catch (Exception e) {
+            log.warn("Can't abort upload {} of {}: {}", uploadId, objectName, e.getMessage());
+        }
+    }
+
+    /**
+     * Picks the part size: configured one, increased (to a whole number of MiB) if the object wouldn't fit into
+     * the maximum number of parts otherwise.
+     */
+    private long getPartSize(long size) {
+        long minimal = (size + MAX_PARTS - 1) / MAX_PARTS;
+        minimal = (minimal + MEBIBYTE - 1) / MEBIBYTE * MEBIBYTE;
+        return Math.max(Math.max(partSize, minimal), MIN_PART_SIZE);
+    }
+
+}
@@ -1,8 +1,11 @@
 package no.uio.ifi.localega.doa.services;
 
-import io.minio.GetObjectArgs;
-import io.minio.MinioClient;
-import io.minio.errors.*;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
 import no.elixir.crypt4gh.pojo.header.DataEditList;
 import no.elixir.crypt4gh.pojo.header.Header;
@@ -12,11 +15,9 @@ import no.elixir.crypt4gh.stream.Crypt4GHInputStream;
 import no.elixir.crypt4gh.util.Crypt4GHUtils;
 import no.elixir.crypt4gh.util.KeyUtils;
 import no.uio.ifi.localega.doa.dto.DestinationFormat;
-import no.uio.ifi.localega.doa.model.LEGADataset;
 import no.uio.ifi.localega.doa.model.LEGAFile;
-import no.uio.ifi.localega.doa.repositories.DatasetRepository;
 import no.uio.ifi.localega.doa.repositories.FileRepository;
-import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -24,11 +25,11 @@ import org.springframework.util.StringUtils;
 
 import jakarta.security.auth.message.AuthException;
 import java.io.*;
-import java.math.BigInteger;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.security.*;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service for streaming files.
@@ -37,26 +38,84 @@ import java.util.Collection;
 @Service
 public class StreamingService {
 
-    @Autowired
-    private MinioClient archiveClient;
+    /**
+     * Size of the plaintext Crypt4GH data segment.
+     */
+    public static final int SEGMENT_SIZE = 65536;
+
+    /**
+     * Size of the encrypted Crypt4GH data segment: nonce, ciphertext and MAC.
+     */
+    public static final int CIPHER_SEGMENT_SIZE = 12 + SEGMENT_SIZE + 16;
+
+    /**
+     * Approximate size of the header cache entry besides the header itself: key, digest and object headers.
+     */
+    private static final int HEADER_CACHE_ENTRY_OVERHEAD = 512;
 
     @Autowired
     private FileRepository fileRepository;
 
     @Autowired
-    private DatasetRepository datasetRepository;
+    private MetadataService metadataService;
 
-    @Value("${s3.bucket}")
-    private String s3Bucket;
+    @Autowired
+    private Crypt4GHKeyHolder crypt4GHKeyHolder;
 
-    @Value("${crypt4gh.private-key-path}")
-    private String crypt4ghPrivateKeyPath;
+    @Autowired
+    private MeterRegistry meterRegistry;
 
-    @Value("${crypt4gh.private-key-password-path}")
-    private String crypt4ghPrivateKeyPasswordPath;
+    @Autowired
+    private BufferPool bufferPool;
 
-    @Value("${archive.path}")
-    private String archivePath;
+    /**
+     * Archive backends, in the order they are tried.
+     */
+    @Autowired
+    private List<ArchiveBackend> archiveBackends;
+
+    @Value("${streaming.header-cache.max-bytes}")
+    private long headerCacheMaxBytes;
+
+    @Value("${streaming.header-cache.ttl}")
+    private long headerCacheTTL;
+
+    /**
+     * Headers re-encrypted for the recipients, so that repeated (range) requests of the same client don't redo the key
+     * agreement and packet encryption.
+     */
+    private Cache<HeaderKey, ReencryptedHeader> headerCache;
+
+    StreamingService() {
+    }
+
+    /**
+     * Creates the service outside of the Spring context (benchmarks).
+     */
+    StreamingService(FileRepository fileRepository, MetadataService metadataService, Crypt4GHKeyHolder crypt4GHKeyHolder,
+                     MeterRegistry meterRegistry, BufferPool bufferPool, List<ArchiveBackend> archiveBackends,
+                     long headerCacheMaxBytes, long headerCacheTTL) {
+        this.fileRepository = fileRepository;
+        this.metadataService = metadataService;
+        this.crypt4GHKeyHolder = crypt4GHKeyHolder;
+        this.meterRegistry = meterRegistry;
+        this.bufferPool = bufferPool;
+        this.archiveBackends = archiveBackends;
+        this.headerCacheMaxBytes = headerCacheMaxBytes;
+        this.headerCacheTTL = headerCacheTTL;
+        init();
+    }
+
+    @PostConstruct
+    private void init() {
+        headerCache = Caffeine.newBuilder()
+                .maximumWeight(headerCacheMaxBytes)
+                .weigher((HeaderKey key, ReencryptedHeader value) -> value.header().length + HEADER_CACHE_ENTRY_OVERHEAD)
+                .expireAfterAccess(headerCacheTTL, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, headerCache, "reencrypted-headers");
+    }
 
     /**
      * Streams the requested file.
@@ -77,73 +136,268 @@ public class StreamingService {
                               String destinationFormat,
                               String startCoordinate,
                               String endCoordinate) throws AuthException, Exception {
+        return stream(open(datasetIds, publicKey, fileId, destinationFormat, startCoordinate, endCoordinate));
+    }
+
+    /**
+     * Opens the requested file in the requested destination format, so that it can be streamed fully or by byte ranges.
+     * The returned content carries the file metadata, so that callers don't need to look it up again.
+     *
+     * @param datasetIds        IDs of datasets, available for this user.
+     * @param publicKey         Optional public key, if the re-encryption was requested.
+     * @param fileId            ID of the file to stream.
+     * @param destinationFormat Destination format.
+     * @param startCoordinate   Start byte.
+     * @param endCoordinate     End byte.
+     * @return File content.
+     * @throws AuthException In case of access denied.
+     * @throws Exception     In case of some other error.
+     */
+    public FileContent open(Collection<String> datasetIds,
+                            String publicKey,
+                            String fileId,
+                            String destinationFormat,
+                            String startCoordinate,
+                            String endCoordinate) throws AuthException, Exception {
         if (!checkPermissions(fileId, datasetIds)) {
             throw new AuthException("User doesn't have permissions to access requested file: " + fileId);
         }
         log.info("User has permissions to access requested file: {}", fileId);
         LEGAFile file = fileRepository.findById(fileId).orElseThrow(() -> new RuntimeException(String.format("File with ID %s doesn't exist", fileId)));
-        byte[] header = Hex.decodeHex(file.getHeader());
-        InputStream bodyInputStream = getFileInputStream(file);
-        String password = Files.readString(Path.of(crypt4ghPrivateKeyPasswordPath));
-        PrivateKey privateKey = KeyUtils.getInstance().readPrivateKey(new File(crypt4ghPrivateKeyPath), password.toCharArray());
+        ArchiveBackend archiveBackend = getArchiveBackend(file);
+        byte[] header = file.getHeader();
+        PrivateKey privateKey = crypt4GHKeyHolder.getPrivateKey();
+        boolean ranged = StringUtils.hasLength(startCoordinate) && StringUtils.hasLength(endCoordinate);
+        long start = 0;
+        long rangeLength = 0;
+        if (ranged) {
+            start = Long.parseLong(startCoordinate);
+            rangeLength = Long.parseLong(endCoordinate);
+            if (start < 0 || rangeLength <= 0) {
+                throw new IllegalArgumentException(String.format("Invalid coordinates: %s, %s", startCoordinate, endCoordinate));
+            }
+        }
         if (DestinationFormat.CRYPT4GH.name().equalsIgnoreCase(destinationFormat)) {
-            return getEncryptedResponse(header, bodyInputStream, privateKey, startCoordinate, endCoordinate, publicKey);
-        } else {
-            return getPlaintextResponse(header, bodyInputStream, privateKey, startCoordinate, endCoordinate);
+            PublicKey recipientPublicKey = KeyUtils.getInstance().readPublicKey(publicKey);
+            long bodyOffset = 0;
+            Long bodyLength = file.getFileSize();
+            DataEditList dataEditList = null;
+            Long skip = null;
+            if (ranged) { // ship only the segments covering the range, with the edit list shifted accordingly
+                long firstSegment = start / SEGMENT_SIZE;
+                long lastSegment = (start + rangeLength - 1) / SEGMENT_SIZE;
+                bodyOffset = firstSegment * CIPHER_SEGMENT_SIZE;
+                bodyLength = (lastSegment - firstSegment + 1) * CIPHER_SEGMENT_SIZE;
+                if (file.getFileSize() != null) {
+                    bodyLength = Math.max(Math.min(bodyLength, file.getFileSize() - bodyOffset), 0);
+                }
+                skip = start - firstSegment * SEGMENT_SIZE;
+                dataEditList = new DataEditList(new long[]{skip, rangeLength});
+            }
+            HeaderKey headerKey = new HeaderKey(fileId, DigestUtils.sha256Hex(header), DigestUtils.sha256Hex(recipientPublicKey.getEncoded()), skip, ranged ? rangeLength : null);
+            ReencryptedHeader reencryptedHeader = headerCache.getIfPresent(headerKey);
+            if (reencryptedHeader == null) {
+                reencryptedHeader = reencryptHeader(header, privateKey, recipientPublicKey, dataEditList);
+                headerCache.put(headerKey, reencryptedHeader);
+            }
+            byte[] serializedHeader = reencryptedHeader.header();
+            Long length = file.getFileSize() == null ? null : serializedHeader.length + bodyLength;
+            // re-encryption is randomized, so the tag covers the header: the same tag means the same bytes
+            String eTag = file.getChecksum() == null ? null : "\"" + DigestUtils.sha256Hex(file.getChecksum() + reencryptedHeader.digest() + startCoordinate + endCoordinate) + "\"";
+            return new FileContent(file, archiveBackend, DestinationFormat.CRYPT4GH, serializedHeader, privateKey, bodyOffset, bodyLength, length, eTag);
+        }
+        Long decryptedFileSize = file.getDecryptedFileSize();
+        String checksum = file.getDecryptedFileChecksum();
+        if (!ranged) {
+            String eTag = checksum == null ? null : "\"" + checksum + "\"";
+            return new FileContent(file, archiveBackend, DestinationFormat.PLAIN, header, privateKey, 0, decryptedFileSize, decryptedFileSize, eTag);
+        }
+        Long length = decryptedFileSize == null ? null : Math.max(Math.min(rangeLength, decryptedFileSize - start), 0);
+        String eTag = checksum == null ? null : "\"" + DigestUtils.sha256Hex(checksum + startCoordinate + endCoordinate) + "\"";
+        return new FileContent(file, archiveBackend, DestinationFormat.PLAIN, header, privateKey, start, length == null ? rangeLength : length, length, eTag);
+    }
+
+    /**
+     * Streams the whole file content.
+     *
+     * @param content File content.
+     * @return File-stream.
+     * @throws Exception In case of some error.
+     */
+    public InputStream stream(FileContent content) throws Exception {
+        LEGAFile file = content.getFile();
+        if (content.getDestinationFormat() == DestinationFormat.PLAIN) {
+            if (isWhole(content.getBodyOffset(), content.getBodyLength(), file.getDecryptedFileSize())) {
+                InputStream sequenceInputStream = new SequenceInputStream(new ByteArrayInputStream(content.getHeader()), getFileInputStream(content));
+                return metered(content, new Crypt4GHInputStream(sequenceInputStream, content.getPrivateKey()));
+            }
+            return metered(content, getPlaintextRange(content, content.getBodyOffset(), content.getBodyLength()));
+        }
+        if (isWhole(content.getBodyOffset(), content.getBodyLength(), file.getFileSize())) {
+            return metered(content, getFileInputStream(content, content.getHeader(), 0, null));
         }
+        return metered(content, getFileInputStream(content, content.getHeader(), content.getBodyOffset(), content.getBodyLength()));
     }
 
-    private InputStream getPlaintextResponse(byte[] header, InputStream bodyInputStream, PrivateKey privateKey, String startCoordinate, String endCoordinate) throws IOException, GeneralSecurityException {
-        ByteArrayInputStream headerInputStream = new ByteArrayInputStream(header);
-        SequenceInputStream sequenceInputStream = new SequenceInputStream(headerInputStream, bodyInputStream);
-        Crypt4GHInputStream crypt4GHInputStream;
-        if (StringUtils.hasLength(startCoordinate) && StringUtils.hasLength(endCoordinate)) {
-            DataEditList dataEditList = new DataEditList(new long[]{Long.parseLong(startCoordinate), Long.parseLong(endCoordinate)});
-            crypt4GHInputStream = new Crypt4GHInputStream(sequenceInputStream, dataEditList, privateKey);
-        } else {
-            crypt4GHInputStream = new Crypt4GHInputStream(sequenceInputStream, privateKey);
+    /**
+     * Streams the byte range of the file content.
+     *
+     * @param content File content.
+     * @param offset  Offset of the first byte of the range.
+     * @param length  Length of the range.
+     * @return Stream of the requested range.
+     * @throws Exception In case of some error.
+     */
+    public InputStream stream(FileContent content, long offset, long length) throws Exception {
+        if (content.getDestinationFormat() == DestinationFormat.PLAIN) {
+            return metered(content, getPlaintextRange(content, content.getBodyOffset() + offset, length));
+        }
+        byte[] header = content.getHeader();
+        long end = offset + length;
+        byte[] headerPart = new byte[0];
+        if (offset < header.length) {
+            headerPart = Arrays.copyOfRange(header, (int) offset, (int) Math.min(end, header.length));
         }
-        return crypt4GHInputStream;
+        if (end <= header.length) {
+            return metered(content, new ByteArrayInputStream(headerPart));
+        }
+        long bodyOffset = Math.max(offset - header.length, 0);
+        return metered(content, getFileInputStream(content, headerPart, content.getBodyOffset() + bodyOffset, end - header.length - bodyOffset));
     }
 
-    private InputStream getEncryptedResponse(byte[] header, InputStream bodyInputStream, PrivateKey privateKey, String startCoordinate, String endCoordinate, String publicKey) throws GeneralSecurityException, IOException {
-        PublicKey recipientPublicKey = KeyUtils.getInstance().readPublicKey(publicKey);
+    /**
+     * Re-encrypts the header for the recipient, adding the data edit list packet, if any.
+     *
+     * @param header             Original Crypt4GH header of the file.
+     * @param privateKey         Private key to decrypt the header with.
+     * @param recipientPublicKey Public key of the recipient.
+     * @param dataEditList       Data edit list for the recipient, <code>null</code> for the whole file.
+     * @return Serialized header and its digest.
+     * @throws Exception In case of some error.
+     */
+    private ReencryptedHeader reencryptHeader(byte[] header, PrivateKey privateKey, PublicKey recipientPublicKey, DataEditList dataEditList) throws Exception {
+        Timer.Sample reencryption = Timer.start(meterRegistry);
         Header newHeader = Crypt4GHUtils.getInstance().setRecipient(header, privateKey, recipientPublicKey);
-        if (StringUtils.hasLength(startCoordinate) && StringUtils.hasLength(endCoordinate)) {
-            DataEditList dataEditList = new DataEditList(new long[]{Long.parseLong(startCoordinate), Long.parseLong(endCoordinate)});
+        if (dataEditList != null) {
             HeaderPacket dataEditListHeaderPacket = new X25519ChaCha20IETFPoly1305HeaderPacket(dataEditList, privateKey, recipientPublicKey);
             newHeader.getHeaderPackets().add(dataEditListHeaderPacket);
         }
-        ByteArrayInputStream headerInputStream = new ByteArrayInputStream(newHeader.serialize());
-        return new SequenceInputStream(headerInputStream, bodyInputStream);
+        byte[] serializedHeader = newHeader.serialize();
+        reencryption.stop(meterRegistry.timer("doa.header.reencryption"));
+        return new ReencryptedHeader(serializedHeader, DigestUtils.sha256Hex(serializedHeader));
+    }
+
+    private InputStream metered(FileContent content, InputStream inputStream) {
+        return new MeteredInputStream(inputStream, meterRegistry.counter("doa.bytes.streamed", "format", content.getDestinationFormat().name()), bufferPool);
+    }
+
+    private boolean isWhole(long offset, Long length, Long size) {
+        return offset == 0 && (length == null || length.equals(size));
+    }
+
+    /**
+     * Decrypts a plaintext range of the file, fetching from the archive only the cipher segments covering that range.
+     *
+     * @param content File content, in PLAIN format.
+     * @param start   Plaintext offset of the first byte to return.
+     * @param length  Number of plaintext bytes to return.
+     * @return Plaintext stream of the requested range.
+     */
+    private InputStream getPlaintextRange(FileContent content, long start, long length) throws Exception {
+        if (length <= 0) {
+            return InputStream.nullInputStream();
+        }
+        long firstSegment = start / SEGMENT_SIZE;
+        long lastSegment = (start + length - 1) / SEGMENT_SIZE;
+        InputStream bodyInputStream = getSegmentsInputStream(content, firstSegment, lastSegment);
+        DataEditList dataEditList = new DataEditList(new long[]{start - firstSegment * SEGMENT_SIZE, length});
+        return new Crypt4GHInputStream(new SequenceInputStream(new ByteArrayInputStream(content.getHeader()), bodyInputStream), dataEditList, content.getPrivateKey());
     }
 
-    private InputStream getFileInputStream(LEGAFile file) throws IOException, InvalidKeyException, NoSuchAlgorithmException, InsufficientDataException, InvalidResponseException, InternalException, ErrorResponseException, ServerException, XmlParserException {
+    /**
+     * Opens the archived body of the file from the first to the last cipher segment (inclusive).
+     *
+     * @param content      File content.
+     * @param firstSegment Index of the first segment.
+     * @param lastSegment  Index of the last segment.
+     * @return Stream of the encrypted segments.
+     */
+    private InputStream getSegmentsInputStream(FileContent content, long firstSegment, long lastSegment) throws Exception {
+        LEGAFile file = content.getFile();
+        long offset = firstSegment * CIPHER_SEGMENT_SIZE;
+        long length = (lastSegment - firstSegment + 1) * CIPHER_SEGMENT_SIZE;
+        Long fileSize = file.getFileSize();
+        if (fileSize != null) {
+            if (offset >= fileSize) {
+                return InputStream.nullInputStream();
+            }
+            length = Math.min(length, fileSize - offset);
+        }
+        log.info("Reading segments {}-{} of file {}", firstSegment, lastSegment, file.getFileId());
+        return getFileInputStream(content, new byte[0], offset, length);
+    }
+
+    private InputStream getFileInputStream(FileContent content) throws Exception {
+        return getFileInputStream(content, new byte[0], 0, null);
+    }
+
+    /**
+     * Opens the archived body of the file, preceded by the given bytes.
+     *
+     * @param content File content.
+     * @param prefix  Bytes to return before the body (e.g. Crypt4GH header).
+     * @param offset  Offset of the body part to read.
+     * @param length  Length of the body part to read, <code>null</code> to read till the end.
+     * @return Stream of the prefix followed by the body.
+     */
+    private InputStream getFileInputStream(FileContent content, byte[] prefix, long offset, Long length) throws Exception {
+        if (length != null && length <= 0) {
+            return new ByteArrayInputStream(prefix);
+        }
+        ArchiveBackend archiveBackend = content.getArchiveBackend();
+        Timer.Sample archiveOpen = Timer.start(meterRegistry);
+        InputStream inputStream = archiveBackend.open(content.getFile(), prefix, offset, length);
+        archiveOpen.stop(meterRegistry.timer("doa.archive.open", "backend", archiveBackend.getName()));
+        return inputStream;
+    }
+
+    private ArchiveBackend getArchiveBackend(LEGAFile file) {
         String filePath = file.getFilePath();
-        try { // S3
-            BigInteger s3FileId = new BigInteger(filePath);
-            return archiveClient.getObject(GetObjectArgs.builder().bucket(s3Bucket).object(s3FileId.toString()).build());
-        } catch (NumberFormatException e) { // filesystem
-            String processedPath;
-            if ("/".equalsIgnoreCase(archivePath)) {
-                processedPath = filePath;
-            } else {
-                processedPath = archivePath + filePath;
+        for (ArchiveBackend archiveBackend : archiveBackends) {
+            if (archiveBackend.supports(filePath)) {
+                return archiveBackend;
             }
-            processedPath = processedPath.replace("//", "/");
-            log.info("Archive path is: {}", processedPath);
-            return Files.newInputStream(new File(processedPath).toPath());
         }
+        throw new IllegalStateException(String.format("No archive backend supports path of file %s", file.getFileId()));
     }
 
     private boolean checkPermissions(String fileId, Collection<String> datasetIds) {
-        Collection<LEGADataset> datasets = datasetRepository.findByDatasetIdIn(datasetIds);
-        for (LEGADataset dataset : datasets) {
-            if (dataset.getFileId().equalsIgnoreCase(fileId)) {
+        return meterRegistry.timer("doa.permission.check").record(() -> {
+            if (containsAny(datasetIds, metadataService.getFileDatasetIds(fileId))) {
+                return true;
+            }
+            // cached datasets of the file may be stale, so access is denied only after checking the database
+            return containsAny(datasetIds, metadataService.reloadFileDatasetIds(fileId));
+        });
+    }
+
+    private boolean containsAny(Collection<String> datasetIds, Collection<String> fileDatasetIds) {
+        for (String datasetId : fileDatasetIds) {
+            if (datasetIds.contains(datasetId)) {
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Key of the re-encrypted header: file, digest of the archived header (changed by re-ingestion or key rotation),
+     * fingerprint of the recipient key and the data edit list (if any).
+     */
+    private record HeaderKey(String fileId, String headerDigest, String recipientKeyFingerprint, Long skip, Long length) {
+    }
+
+    private record ReencryptedHeader(byte[] header, String digest) {
+    }
+
 }
@@ -27,6 +27,7 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -34,6 +35,7 @@ import java.security.PrivateKey;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.UUID;
 
@@ -65,6 +67,8 @@ class LocalEGADOAApplicationTests {
         header.executeUpdate();
         PreparedStatement finalize = connection.prepareStatement("UPDATE local_ega.files SET archive_path = 'test/body.enc', status = 'READY', stable_id = 'EGAF00000000014' WHERE id = 1;");
         finalize.executeUpdate();
+        PreparedStatement sizes = connection.prepareStatement("UPDATE local_ega.files SET archive_filesize = 70281, decrypted_file_size = 70225, decrypted_file_checksum = '2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e', decrypted_file_checksum_type = 'SHA256' WHERE id = 1;");
+        sizes.executeUpdate();
         connection.close();
 
 //        props.setProperty("user", "lega_out"); //will be used when lega_out user is set in db again
@@ -145,7 +149,62 @@ class LocalEGADOAApplicationTests {
         HttpResponse<JsonNode> response = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asJson();
         int status = response.getStatus();
         Assertions.assertEquals(HttpStatus.OK.value(), status);
-        Assertions.assertEquals("[{\"fileId\":\"EGAF00000000014\",\"datasetId\":\"EGAD00010000919\",\"displayFileName\":\"body.enc\",\"fileName\":\"test/body.enc\",\"fileSize\":null,\"unencryptedChecksum\":null,\"unencryptedChecksumType\":null,\"decryptedFileSize\":null,\"decryptedFileChecksum\":null,\"decryptedFileChecksumType\":null,\"fileStatus\":\"READY\"}]", response.getBody().toString());
+        Assertions.assertEquals("[{\"fileId\":\"EGAF00000000014\",\"datasetId\":\"EGAD00010000919\",\"displayFileName\":\"body.enc\",\"fileName\":\"test/body.enc\",\"fileSize\":70281,\"unencryptedChecksum\":null,\"unencryptedChecksumType\":null,\"decryptedFileSize\":70225,\"decryptedFileChecksum\":\"2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e\",\"decryptedFileChecksumType\":\"SHA256\",\"fileStatus\":\"READY\"}]", response.getBody().toString());
+    }
+
+    @Test
+    void testMetadataFilesValidTokenValidDatasetLimit() {
+        HttpResponse<JsonNode> response = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files?limit=1").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asJson();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertEquals("[{\"fileId\":\"EGAF00000000014\",\"datasetId\":\"EGAD00010000919\",\"displayFileName\":\"body.enc\",\"fileName\":\"test/body.enc\",\"fileSize\":70281,\"unencryptedChecksum\":null,\"unencryptedChecksumType\":null,\"decryptedFileSize\":70225,\"decryptedFileChecksum\":\"2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e\",\"decryptedFileChecksumType\":\"SHA256\",\"fileStatus\":\"READY\"}]", response.getBody().toString());
+    }
+
+    @Test
+    void testMetadataFilesValidTokenValidDatasetZeroLimit() {
+        HttpResponse<JsonNode> response = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files?limit=0").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asJson();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertEquals("[]", response.getBody().toString());
+    }
+
+    @Test
+    void testMetadataFilesValidTokenValidDatasetNegativeLimit() {
+        int status = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files?limit=-1").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asString().getStatus();
+        Assertions.assertEquals(HttpStatus.BAD_REQUEST.value(), status);
+    }
+
+    @Test
+    void testMetadataFilesValidTokenValidDatasetAfterPreviousFile() {
+        HttpResponse<JsonNode> response = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files?after=EGAF00000000013&limit=10").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asJson();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertEquals("[{\"fileId\":\"EGAF00000000014\",\"datasetId\":\"EGAD00010000919\",\"displayFileName\":\"body.enc\",\"fileName\":\"test/body.enc\",\"fileSize\":70281,\"unencryptedChecksum\":null,\"unencryptedChecksumType\":null,\"decryptedFileSize\":70225,\"decryptedFileChecksum\":\"2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e\",\"decryptedFileChecksumType\":\"SHA256\",\"fileStatus\":\"READY\"}]", response.getBody().toString());
+    }
+
+    @Test
+    void testMetadataFilesValidTokenValidDatasetAfterLastFile() {
+        HttpResponse<JsonNode> response = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files?after=EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asJson();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertEquals("[]", response.getBody().toString());
+    }
+
+    @Test
+    void testMetadataFilesValidTokenValidDatasetNDJSON() {
+        HttpResponse<String> response = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.ACCEPT, "application/x-ndjson").asString();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertTrue(response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE).startsWith("application/x-ndjson"));
+        Assertions.assertEquals("{\"fileId\":\"EGAF00000000014\",\"datasetId\":\"EGAD00010000919\",\"displayFileName\":\"body.enc\",\"fileName\":\"test/body.enc\",\"fileSize\":70281,\"unencryptedChecksum\":null,\"unencryptedChecksumType\":null,\"decryptedFileSize\":70225,\"decryptedFileChecksum\":\"2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e\",\"decryptedFileChecksumType\":\"SHA256\",\"fileStatus\":\"READY\"}\n", response.getBody());
+    }
+
+    @Test
+    void testMetadataFilesValidTokenValidDatasetNDJSONLowerQuality() {
+        HttpResponse<String> response = Unirest.get("http://localhost:8080/metadata/datasets/EGAD00010000919/files").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.ACCEPT, "application/json, application/x-ndjson;q=0.5").asString();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertTrue(response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE).startsWith("application/json"));
     }
 
     @Test
@@ -213,6 +272,96 @@ class LocalEGADOAApplicationTests {
         }
     }
 
+    @Test
+    void testStreamingValidTokenValidFileHttpRangePlain() {
+        byte[] file = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asBytes().getBody();
+        HttpResponse<byte[]> response = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.RANGE, "bytes=100-199").asBytes();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), status);
+        Assertions.assertEquals("bytes 100-199/70225", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        Assertions.assertArrayEquals(Arrays.copyOfRange(file, 100, 200), response.getBody());
+    }
+
+    @Test
+    void testStreamingValidTokenValidFileHttpMultiRangePlain() {
+        byte[] file = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asBytes().getBody();
+        HttpResponse<byte[]> response = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.RANGE, "bytes=0-9,70000-").asBytes();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), status);
+        Assertions.assertTrue(response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE).startsWith("multipart/byteranges; boundary="));
+        String body = new String(response.getBody(), StandardCharsets.ISO_8859_1);
+        Assertions.assertTrue(body.contains("Content-Range: bytes 0-9/70225\r\n\r\n" + new String(Arrays.copyOfRange(file, 0, 10), StandardCharsets.ISO_8859_1)));
+        Assertions.assertTrue(body.contains("Content-Range: bytes 70000-70224/70225\r\n\r\n" + new String(Arrays.copyOfRange(file, 70000, 70225), StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void testStreamingValidTokenValidFileHttpRangeIfRangeMatch() {
+        String eTag = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).asBytes().getHeaders().getFirst(HttpHeaders.ETAG);
+        Assertions.assertEquals("\"2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e\"", eTag);
+        HttpResponse<byte[]> response = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.RANGE, "bytes=0-9").header(HttpHeaders.IF_RANGE, eTag).asBytes();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), status);
+        Assertions.assertEquals(10, response.getBody().length);
+    }
+
+    @Test
+    void testStreamingValidTokenValidFileHttpRangeIfRangeMismatch() {
+        HttpResponse<byte[]> response = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.RANGE, "bytes=0-9").header(HttpHeaders.IF_RANGE, "\"outdated\"").asBytes();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertEquals("2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e", DigestUtils.sha256Hex(response.getBody()));
+    }
+
+    @Test
+    void testStreamingValidTokenValidFileHttpRangeNotSatisfiable() {
+        HttpResponse<byte[]> response = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.RANGE, "bytes=70225-70300").asBytes();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value(), status);
+        Assertions.assertEquals("bytes */70225", response.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+    }
+
+    @Test
+    void testStreamingValidTokenValidFileHttpRangeUnknownUnit() {
+        HttpResponse<byte[]> response = Unirest.get("http://localhost:8080/files/EGAF00000000014").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header(HttpHeaders.RANGE, "items=0-5").asBytes();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.OK.value(), status);
+        Assertions.assertEquals("2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e", DigestUtils.sha256Hex(response.getBody()));
+    }
+
+    @SneakyThrows
+    @Test
+    void testStreamingValidTokenValidFileHttpRangeEncrypted() {
+        String publicKey = Files.readString(new File("test/crypt4gh.pub.pem").toPath());
+        PrivateKey privateKey = KeyUtils.getInstance().readPrivateKey(new File("test/crypt4gh.sec.pem"), "password".toCharArray());
+        // re-encrypted header is cached, so the ranges are taken from the same representation
+        byte[] file = Unirest.get("http://localhost:8080/files/EGAF00000000014?destinationFormat=crypt4gh").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header("Public-Key", publicKey).asBytes().getBody();
+        HttpResponse<byte[]> head = Unirest.get("http://localhost:8080/files/EGAF00000000014?destinationFormat=crypt4gh").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header("Public-Key", publicKey).header(HttpHeaders.RANGE, "bytes=0-99").asBytes();
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), head.getStatus());
+        Assertions.assertEquals("bytes 0-99/" + file.length, head.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        HttpResponse<byte[]> tail = Unirest.get("http://localhost:8080/files/EGAF00000000014?destinationFormat=crypt4gh").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header("Public-Key", publicKey).header(HttpHeaders.RANGE, "bytes=100-").asBytes();
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), tail.getStatus());
+        Assertions.assertEquals("bytes 100-" + (file.length - 1) + "/" + file.length, tail.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE));
+        try (InputStream inputStream = new SequenceInputStream(new ByteArrayInputStream(head.getBody()), new ByteArrayInputStream(tail.getBody()));
+             Crypt4GHInputStream crypt4GHInputStream = new Crypt4GHInputStream(inputStream, privateKey)) {
+            byte[] bytes = IOUtils.toByteArray(crypt4GHInputStream);
+            Assertions.assertEquals("2aef808fb42fa7b1ba76cb16644773f9902a3fdc2569e8fdc049f38280c4577e", DigestUtils.sha256Hex(bytes));
+        }
+    }
+
+    @SneakyThrows
+    @Test
+    void testStreamingValidTokenValidFileHttpMultiRangeEncrypted() {
+        String publicKey = Files.readString(new File("test/crypt4gh.pub.pem").toPath());
+        byte[] file = Unirest.get("http://localhost:8080/files/EGAF00000000014?destinationFormat=crypt4gh").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header("Public-Key", publicKey).asBytes().getBody();
+        HttpResponse<byte[]> response = Unirest.get("http://localhost:8080/files/EGAF00000000014?destinationFormat=crypt4gh").header(HttpHeaders.AUTHORIZATION, "Bearer " + validToken).header("Public-Key", publicKey).header(HttpHeaders.RANGE, "bytes=0-99,1000-1099").asBytes();
+        int status = response.getStatus();
+        Assertions.assertEquals(HttpStatus.PARTIAL_CONTENT.value(), status);
+        Assertions.assertTrue(response.getHeaders().getFirst(HttpHeaders.CONTENT_TYPE).startsWith("multipart/byteranges; boundary="));
+        String body = new String(response.getBody(), StandardCharsets.ISO_8859_1);
+        Assertions.assertTrue(body.contains("Content-Range: bytes 0-99/" + file.length + "\r\n\r\n" + new String(Arrays.copyOfRange(file, 0, 100), StandardCharsets.ISO_8859_1)));
+        Assertions.assertTrue(body.contains("Content-Range: bytes 1000-1099/" + file.length + "\r\n\r\n" + new String(Arrays.copyOfRange(file, 1000, 1100), StandardCharsets.ISO_8859_1)));
+    }
+
     @SneakyThrows
     @Test
     void testPOSIXExportRequestFileValidToken() {
@@ -0,0 +1,129 @@
+package no.uio.ifi.localega.doa.services;
+
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class PrefetchingInputStreamTest {
+
+    private static final int CHUNK_SIZE = 100;
+
+    private final byte[] object = new byte[10_000];
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private ExecutorService executorService;
+
+    @BeforeEach
+    public void setUp() {
+        new Random(42).nextBytes(object);
+        executorService = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Fake range reader: chunks at lower offsets take longer, so that they complete out of order.
+     */
+    @SneakyThrows
+    private byte[] read(long offset, int length) {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            Thread.sleep(20 - offset * 20 / object.length);
+            return Arrays.copyOfRange(object, (int) offset, (int) offset + length);
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private PrefetchingInputStream open(PrefetchingInputStream.RangeReader rangeReader, Semaphore permits, int concurrency, long offset, long length) {
+        Assertions.assertTrue(permits.tryAcquire());
+        return new PrefetchingInputStream(rangeReader, executorService, permits, CHUNK_SIZE, concurrency, offset, length);
+    }
+
+    @SneakyThrows
+    @Test
+    public void testChunksReturnedInOrder() {
+        Semaphore permits = new Semaphore(16);
+        try (InputStream inputStream = open(this::read, permits, 4, 150, 9000)) {
+            Assertions.assertArrayEquals(Arrays.copyOfRange(object, 150, 9150), inputStream.readAllBytes());
+        }
+        Assertions.assertTrue(maxRunning.get() > 1);
+        Assertions.assertTrue(maxRunning.get() <= 4);
+        Assertions.assertEquals(16, permits.availablePermits());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testProgressWithSinglePermit() {
+        Semaphore permits = new Semaphore(1);
+        try (InputStream inputStream = open(this::read, permits, 4, 0, 1050)) {
+            Assertions.assertArrayEquals(Arrays.copyOfRange(object, 0, 1050), inputStream.readAllBytes());
+        }
+        Assertions.assertEquals(1, maxRunning.get());
+        Assertions.assertEquals(1, permits.availablePermits());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testPermitsBoundChunksAcrossStreams() {
+        Semaphore permits = new Semaphore(3);
+        // the first stream takes two permits, the second one is left with its own
+        try (PrefetchingInputStream first = open(this::read, permits, 2, 0, 5000);
+             PrefetchingInputStream second = open(this::read, permits, 4, 5000, 5000)) {
+            first.awaitFirstChunk();
+            second.awaitFirstChunk();
+            Assertions.assertEquals(0, permits.availablePermits());
+            byte[] firstPart = first.readNBytes(10);
+            Assertions.assertArrayEquals(Arrays.copyOfRange(object, 0, 10), firstPart);
+            Assertions.assertArrayEquals(Arrays.copyOfRange(object, 5000, 10_000), second.readAllBytes());
+            Assertions.assertArrayEquals(Arrays.copyOfRange(object, 10, 5000), first.readAllBytes());
+        }
+        Assertions.assertEquals(3, permits.availablePermits());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testPermitsReleasedOnEarlyClose() {
+        Semaphore permits = new Semaphore(8);
+        PrefetchingInputStream inputStream = open(this::read, permits, 4, 0, 10_000);
+        Assertions.assertArrayEquals(Arrays.copyOfRange(object, 0, 250), inputStream.readNBytes(250));
+        Assertions.assertTrue(permits.availablePermits() < 8);
+        inputStream.close();
+        Assertions.assertEquals(8, permits.availablePermits());
+        inputStream.close();
+        Assertions.assertEquals(8, permits.availablePermits());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testFailedChunk() {
+        Semaphore permits = new Semaphore(8);
+        PrefetchingInputStream.RangeReader failing = (offset, length) -> {
+            if (offset == 300) {
+                throw new IOException("Range not readable");
+            }
+            return read(offset, length);
+        };
+        try (InputStream inputStream = open(failing, permits, 4, 0, 1000)) {
+            Assertions.assertArrayEquals(Arrays.copyOfRange(object, 0, 300), inputStream.readNBytes(300));
+            IOException exception = Assertions.assertThrows(IOException.class, inputStream::read);
+            Assertions.assertEquals("Range not readable", exception.getMessage());
+        }
+        Assertions.assertEquals(8, permits.availablePermits());
+    }
+
+}
@@ -0,0 +1,94 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.minio.GetObjectArgs;
+import io.minio.GetObjectResponse;
+import io.minio.MinioClient;
+import lombok.SneakyThrows;
+import no.uio.ifi.localega.doa.model.LEGAFile;
+import okhttp3.Headers;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static no.uio.ifi.localega.doa.services.StreamingService.CIPHER_SEGMENT_SIZE;
+import static org.mockito.ArgumentMatchers.any;
+
+class S3ArchiveBackendTest {
+
+    private static final String BUCKET = "lega";
+    private static final byte[] PREFIX = {1, 2, 3};
+
+    private final byte[] object = new byte[10 * CIPHER_SEGMENT_SIZE + 100];
+    private MinioClient archiveClient;
+    private LEGAFile file;
+
+    @SneakyThrows
+    @BeforeEach
+    public void setUp() {
+        new Random(42).nextBytes(object);
+        archiveClient = Mockito.mock(MinioClient.class);
+        Mockito.when(archiveClient.getObject(any(GetObjectArgs.class))).thenAnswer(invocation -> {
+            GetObjectArgs args = invocation.getArgument(0);
+            int offset = args.offset() == null ? 0 : args.offset().intValue();
+            int end = args.length() == null ? object.length : offset + args.length().intValue();
+            return new GetObjectResponse(Headers.of(), args.bucket(), null, args.object(), new ByteArrayInputStream(Arrays.copyOfRange(object, offset, end)));
+        });
+        file = new LEGAFile();
+        file.setFileId("EGAF00000000001");
+        file.setFilePath("000042");
+        file.setFileSize((long) object.length);
+    }
+
+    private byte[] expected(int offset) {
+        byte[] expected = new byte[PREFIX.length + object.length - offset];
+        System.arraycopy(PREFIX, 0, expected, 0, PREFIX.length);
+        System.arraycopy(object, offset, expected, PREFIX.length, object.length - offset);
+        return expected;
+    }
+
+    @SneakyThrows
+    @Test
+    public void testPrefetchedRanges() {
+        S3ArchiveBackend archiveBackend = new S3ArchiveBackend(archiveClient, new SimpleMeterRegistry(), BUCKET, 4, 2, 8);
+        try (InputStream inputStream = archiveBackend.open(file, PREFIX, 100, null)) {
+            Assertions.assertArrayEquals(expected(100), inputStream.readAllBytes());
+        }
+        ArgumentCaptor<GetObjectArgs> args = ArgumentCaptor.forClass(GetObjectArgs.class);
+        Mockito.verify(archiveClient, Mockito.times(6)).getObject(args.capture());
+        Assertions.assertTrue(args.getAllValues().stream().allMatch(a -> "42".equals(a.object()) && a.length() <= 2L * CIPHER_SEGMENT_SIZE));
+    }
+
+    @SneakyThrows
+    @Test
+    public void testSingleRequestWithoutPermits() {
+        S3ArchiveBackend archiveBackend = new S3ArchiveBackend(archiveClient, new SimpleMeterRegistry(), BUCKET, 4, 2, 0);
+        try (InputStream inputStream = archiveBackend.open(file, PREFIX, 100, null)) {
+            Assertions.assertArrayEquals(expected(100), inputStream.readAllBytes());
+        }
+        ArgumentCaptor<GetObjectArgs> args = ArgumentCaptor.forClass(GetObjectArgs.class);
+        Mockito.verify(archiveClient).getObject(args.capture());
+        Assertions.assertEquals("42", args.getValue().object());
+        Assertions.assertEquals(100L, args.getValue().offset());
+        Assertions.assertNull(args.getValue().length());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testSingleRequestForShortRegion() {
+        S3ArchiveBackend archiveBackend = new S3ArchiveBackend(archiveClient, new SimpleMeterRegistry(), BUCKET, 4, 2, 8);
+        try (InputStream inputStream = archiveBackend.open(file, PREFIX, 0, 1000L)) {
+            byte[] content = inputStream.readAllBytes();
+            Assertions.assertArrayEquals(Arrays.copyOfRange(expected(0), 0, PREFIX.length + 1000), content);
+        }
+        Mockito.verify(archiveClient).getObject(any(GetObjectArgs.class));
+    }
+
+}
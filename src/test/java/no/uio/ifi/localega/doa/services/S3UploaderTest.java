@@ -0,0 +1,121 @@
+package no.uio.ifi.localega.doa.services;
+
+import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
+import io.minio.messages.Part;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+
+class S3UploaderTest {
+
+    private static final String BUCKET = "outbox";
+    private static final String OBJECT_NAME = "EGAF00000000001.c4gh";
+    private static final String UPLOAD_ID = "upload";
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private MinioClient outboxClient;
+    private S3MultipartClient outboxMultipartClient;
+    private S3Uploader s3Uploader;
+
+    @SneakyThrows
+    @BeforeEach
+    public void setUp() {
+        outboxClient = Mockito.mock(MinioClient.class);
+        outboxMultipartClient = Mockito.mock(S3MultipartClient.class);
+        Mockito.when(outboxMultipartClient.createUpload(BUCKET, OBJECT_NAME)).thenReturn(UPLOAD_ID);
+        s3Uploader = new S3Uploader(outboxClient, outboxMultipartClient, PART_SIZE, 2);
+    }
+
+    @SneakyThrows
+    @Test
+    public void testSinglePart() {
+        byte[] content = randomBytes(PART_SIZE);
+        s3Uploader.upload(BUCKET, OBJECT_NAME, new ByteArrayInputStream(content), (long) content.length);
+        Mockito.verify(outboxClient).putObject(any(PutObjectArgs.class));
+        Mockito.verifyNoInteractions(outboxMultipartClient);
+    }
+
+    @SneakyThrows
+    @Test
+    public void testPartsCompletedInOrder() {
+        byte[] content = randomBytes(3 * PART_SIZE + 100);
+        Map<Integer, byte[]> uploaded = new ConcurrentHashMap<>();
+        Mockito.when(outboxMultipartClient.putPart(eq(BUCKET), eq(OBJECT_NAME), eq(UPLOAD_ID), anyInt(), any())).thenAnswer(invocation -> {
+            int partNumber = invocation.getArgument(3);
+            uploaded.put(partNumber, invocation.getArgument(4));
+            // earlier parts finish later
+            return CompletableFuture.supplyAsync(() -> new Part(partNumber, "etag" + partNumber), CompletableFuture.delayedExecutor(200L / partNumber, TimeUnit.MILLISECONDS));
+        });
+
+        s3Uploader.upload(BUCKET, OBJECT_NAME, new ByteArrayInputStream(content), (long) content.length);
+
+        ArgumentCaptor<Part[]> parts = ArgumentCaptor.forClass(Part[].class);
+        Mockito.verify(outboxMultipartClient).completeUpload(eq(BUCKET), eq(OBJECT_NAME), eq(UPLOAD_ID), parts.capture());
+        Assertions.assertArrayEquals(new int[]{1, 2, 3, 4}, Arrays.stream(parts.getValue()).mapToInt(Part::partNumber).toArray());
+        Assertions.assertArrayEquals(new String[]{"etag1", "etag2", "etag3", "etag4"}, Arrays.stream(parts.getValue()).map(Part::etag).toArray());
+        for (int i = 0; i < 4; i++) {
+            byte[] expected = Arrays.copyOfRange(content, i * PART_SIZE, Math.min((i + 1) * PART_SIZE, content.length));
+            Assertions.assertArrayEquals(expected, uploaded.get(i + 1));
+        }
+        Mockito.verify(outboxMultipartClient, Mockito.never()).abortUpload(any(), any(), any());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testAbortOnFailedPart() {
+        byte[] content = randomBytes(4 * PART_SIZE);
+        Mockito.when(outboxMultipartClient.putPart(eq(BUCKET), eq(OBJECT_NAME), eq(UPLOAD_ID), anyInt(), any())).thenAnswer(invocation -> {
+            int partNumber = invocation.getArgument(3);
+            return partNumber == 2
+                    ? CompletableFuture.failedFuture(new IOException("Part upload failed"))
+                    : CompletableFuture.completedFuture(new Part(partNumber, "etag" + partNumber));
+        });
+
+        ExecutionException exception = Assertions.assertThrows(ExecutionException.class,
+                () -> s3Uploader.upload(BUCKET, OBJECT_NAME, new ByteArrayInputStream(content), (long) content.length));
+        Assertions.assertInstanceOf(IOException.class, exception.getCause());
+        Mockito.verify(outboxMultipartClient).abortUpload(BUCKET, OBJECT_NAME, UPLOAD_ID);
+        Mockito.verify(outboxMultipartClient, Mockito.never()).completeUpload(any(), any(), any(), any());
+    }
+
+    @SneakyThrows
+    @Test
+    public void testAbortOnTruncatedStream() {
+        byte[] content = randomBytes(2 * PART_SIZE);
+        Mockito.when(outboxMultipartClient.putPart(eq(BUCKET), eq(OBJECT_NAME), eq(UPLOAD_ID), anyInt(), any())).thenAnswer(invocation -> {
+            int partNumber = invocation.getArgument(3);
+            return CompletableFuture.completedFuture(new Part(partNumber, "etag" + partNumber));
+        });
+
+        Assertions.assertThrows(EOFException.class,
+                () -> s3Uploader.upload(BUCKET, OBJECT_NAME, new ByteArrayInputStream(content), 3L * PART_SIZE));
+        Mockito.verify(outboxMultipartClient).abortUpload(BUCKET, OBJECT_NAME, UPLOAD_ID);
+        Mockito.verify(outboxMultipartClient, Mockito.never()).completeUpload(any(), any(), any(), any());
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+}